@@ -0,0 +1,38 @@
+package emulator.cpu;
+
+/**
+ *  Straight-line run of decoded instructions, ending at the first control transfer;
+ *  Instruction i starts at addresses[i] and the one after it at addresses[i + 1];
+ */
+class Block {
+    final int[] opCodes;
+    final int[] operands;
+    final int[] addresses;
+    final int length;
+
+    // cleared when a write hits the block, so a block being replayed is dropped too
+    boolean valid = true;
+
+    // cycles of one iteration when the block is a side-effect-free polling loop, otherwise 0
+    int idleLoopCycles;
+
+    // JIT profile: entries from the interpreter, and the translation once the block is hot
+    int entries;
+    CompiledBlock compiled;
+    int compiledMaxCycles;
+
+    Block(int[] opCodes, int[] operands, int[] addresses, int length) {
+        this.opCodes = opCodes;
+        this.operands = operands;
+        this.addresses = addresses;
+        this.length = length;
+    }
+
+    int start() {
+        return addresses[0];
+    }
+
+    int end() {
+        return addresses[length];
+    }
+}
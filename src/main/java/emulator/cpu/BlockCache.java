@@ -0,0 +1,237 @@
+package emulator.cpu;
+
+import emulator.memory.CodeWriteListener;
+import emulator.memory.MMU;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *  Decode cache for the interpreter, keyed by the PC of the first instruction;
+ *  Blocks are decoded from ROM, WRAM and HRAM only; other regions are fetched directly;
+ *  ROM blocks live forever, RAM blocks are dropped when the MMU reports a write into them;
+ *  Like the MMU, lookups go through a table of 256-entry pages; each ROM bank keeps its own
+ *  pages, which a bank switch swaps in, so blocks and their translations survive switching back;
+ */
+class BlockCache implements CodeWriteListener {
+    static final int MAX_INSTRUCTIONS = 32;
+
+    private static final int BANK_PAGES = 0x40;
+
+    private final MMU mmu;
+    // called when a bank switch may have replaced the code under the block being replayed
+    private final Runnable remapped;
+    private final Block[][] pages = new Block[0x100][];
+
+    // pages of every ROM bank seen so far, by bank, for 0x0000-0x3FFF and 0x4000-0x7FFF
+    private Block[][][] lowBanks = new Block[1][][];
+    private Block[][][] highBanks = new Block[2][][];
+    private Block[][] lowPages;
+    private Block[][] highPages;
+
+    // RAM blocks by every page they touch, for invalidation
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final List<Block>[] pageBlocks = new List[0x100];
+
+    BlockCache(MMU mmu, Runnable remapped) {
+        this.mmu = mmu;
+        this.remapped = remapped;
+        lowPages = bankPages(lowBanks, 0);
+        highPages = bankPages(highBanks, 1);
+        System.arraycopy(lowPages, 0, pages, 0, BANK_PAGES);
+        System.arraycopy(highPages, 0, pages, BANK_PAGES, BANK_PAGES);
+        mmu.setCodeWriteListener(this);
+    }
+
+    /** Returns the block starting at pc, decoding it on first use, or null if pc is not cacheable. */
+    Block lookup(int pc) {
+        Block block = cached(pc);
+        if (block == null) {
+            block = decode(pc);
+        }
+        return block;
+    }
+
+    /** Returns the block starting at pc if it has been decoded already. */
+    Block cached(int pc) {
+        Block[] page = pages[pc >> 8];
+        return page == null ? null : page[pc & 0xFF];
+    }
+
+    /** Drops every compiled translation, keeping the decoded blocks. */
+    void clearCompiled() {
+        clearCompiled(pages);
+        for (Block[][] bank : lowBanks) clearCompiled(bank);
+        for (Block[][] bank : highBanks) clearCompiled(bank);
+    }
+
+    private static void clearCompiled(Block[][] pages) {
+        if (pages == null) return;
+        for (Block[] page : pages) {
+            if (page == null) continue;
+            for (Block block : page) {
+                if (block != null) {
+                    block.compiled = null;
+                    block.entries = 0;
+                }
+            }
+        }
+    }
+
+    /** End (exclusive) of the cacheable region holding the address, or 0 if it is not cacheable. */
+    private static int regionEnd(int address) {
+        // the two ROM halves are banked independently, so a block must not span them
+        if (address < 0x4000) return 0x4000;
+        if (address < 0x8000) return 0x8000;
+        if (address >= 0xC000 && address < 0xE000) return 0xE000;
+        if (address >= 0xFF80 && address < 0xFFFF) return 0xFFFF;
+        return 0;
+    }
+
+    /** Control transfers, HALT and STOP end a block; the instruction itself is included. */
+    private static boolean endsBlock(int opCode) {
+        switch (opCode) {
+            case 0x10: case 0x76:
+            case 0x18: case 0x20: case 0x28: case 0x30: case 0x38:
+            case 0xC2: case 0xC3: case 0xCA: case 0xD2: case 0xDA: case 0xE9:
+            case 0xC4: case 0xCC: case 0xCD: case 0xD4: case 0xDC:
+            case 0xC0: case 0xC8: case 0xC9: case 0xD0: case 0xD8: case 0xD9:
+                return true;
+            default:
+                return (opCode & 0xC7) == 0xC7;     // RST
+        }
+    }
+
+    static int readOperand(MMU mmu, int address, int length) {
+        switch (length) {
+            case 2:
+                return mmu.readCode((address + 1) & 0xFFFF);
+            case 3:
+                return mmu.readCode((address + 1) & 0xFFFF) | mmu.readCode((address + 2) & 0xFFFF) << 8;
+            default:
+                return 0;
+        }
+    }
+
+    private Block decode(int pc) {
+        int end = regionEnd(pc);
+        if (end == 0) return null;
+
+        int[] opCodes = new int[MAX_INSTRUCTIONS];
+        int[] operands = new int[MAX_INSTRUCTIONS];
+        int[] addresses = new int[MAX_INSTRUCTIONS + 1];
+        int count = 0;
+        int address = pc;
+        while (count < MAX_INSTRUCTIONS) {
+            int opCode = mmu.readCode(address);
+            int length = CPU.opLengths[opCode];
+            if (address + length > end) break;
+            opCodes[count] = opCode;
+            operands[count] = readOperand(mmu, address, length);
+            addresses[count] = address;
+            count++;
+            address += length;
+            if (endsBlock(opCode)) break;
+        }
+        if (count == 0) return null;
+        addresses[count] = address;
+
+        Block block = new Block(Arrays.copyOf(opCodes, count), Arrays.copyOf(operands, count),
+                Arrays.copyOf(addresses, count + 1), count);
+        block.idleLoopCycles = idleLoopCycles(block);
+        Block[] slots = pages[pc >> 8];
+        if (slots == null) {
+            slots = new Block[0x100];
+            pages[pc >> 8] = slots;
+            // ROM pages are owned by the bank mapped now
+            if (pc < 0x4000) lowPages[pc >> 8] = slots;
+            else if (pc < 0x8000) highPages[(pc >> 8) - BANK_PAGES] = slots;
+        }
+        slots[pc & 0xFF] = block;
+        if (end > 0x8000) {
+            for (int page = pc >> 8; page <= (address - 1) >> 8; page++) {
+                if (pageBlocks[page] == null) pageBlocks[page] = new ArrayList<>();
+                pageBlocks[page].add(block);
+                mmu.watchCode(page, true);
+            }
+        }
+        return block;
+    }
+
+    /** I/O registers that only change on PPU events: IF, STAT and LY. */
+    private static boolean ppuRegister(int address) {
+        return address == 0xFF0F || address == 0xFF41 || address == 0xFF44;
+    }
+
+    /**
+     * Recognises a loop that polls a PPU register until it changes:
+     * LDH A, (n) or LD A, (nn), then any of AND n / CP n / BIT b, A, then JR cc back to
+     * the load. Such a loop only touches A and the flags, so every iteration before the
+     * register changes leaves the same state. Returns the cycles of one iteration, or 0.
+     */
+    private static int idleLoopCycles(Block block) {
+        int last = block.length - 1;
+        int jump = block.opCodes[last];
+        if (last < 1 || (jump & 0xE7) != 0x20 || ((block.end() + (byte) block.operands[last]) & 0xFFFF) != block.start()) {
+            return 0;
+        }
+        int load = block.opCodes[0];
+        int address = load == 0xF0 ? 0xFF00 + block.operands[0] : block.operands[0];
+        if ((load != 0xF0 && load != 0xFA) || !ppuRegister(address)) return 0;
+
+        int cycles = CPU.opCycles[load] + CPU.opCycleBranched[jump];
+        for (int i = 1; i < last; i++) {
+            int opCode = block.opCodes[i];
+            if (opCode == 0xE6 || opCode == 0xFE) {
+                cycles += CPU.opCycles[opCode];
+            } else if (opCode == 0xCB && (block.operands[i] & 0xC7) == 0x47) {
+                cycles += CPU.opCyclesCB[block.operands[i]];
+            } else {
+                return 0;
+            }
+        }
+        return cycles;
+    }
+
+    @Override
+    public void codeWritten(int address) {
+        int page = address >> 8;
+        List<Block> list = pageBlocks[page];
+        if (list == null) return;
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Block block = list.get(i);
+            if (address >= block.start() && address < block.end()) {
+                invalidate(block);
+            }
+        }
+    }
+
+    @Override
+    public void romBanksMapped(int lowBank, int highBank) {
+        if (lowBanks.length <= lowBank) lowBanks = Arrays.copyOf(lowBanks, lowBank + 1);
+        if (highBanks.length <= highBank) highBanks = Arrays.copyOf(highBanks, highBank + 1);
+        lowPages = bankPages(lowBanks, lowBank);
+        highPages = bankPages(highBanks, highBank);
+        System.arraycopy(lowPages, 0, pages, 0, BANK_PAGES);
+        System.arraycopy(highPages, 0, pages, BANK_PAGES, BANK_PAGES);
+        remapped.run();
+    }
+
+    private static Block[][] bankPages(Block[][][] banks, int bank) {
+        if (banks[bank] == null) banks[bank] = new Block[BANK_PAGES][];
+        return banks[bank];
+    }
+
+    private void invalidate(Block block) {
+        block.valid = false;
+        pages[block.start() >> 8][block.start() & 0xFF] = null;
+        for (int page = block.start() >> 8; page <= (block.end() - 1) >> 8; page++) {
+            List<Block> list = pageBlocks[page];
+            list.remove(block);
+            if (list.isEmpty()) {
+                mmu.watchCode(page, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,630 @@
+package emulator.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  JIT tier above the interpreter;
+ *  Counts how often the interpreter enters each ROM block and translates hot blocks
+ *  into generated JVM classes, so HotSpot optimises the guest code directly;
+ *  Translated code only writes plain memory (VRAM, WRAM, HRAM) and never touches
+ *  IME/HALT/STOP, which lets a compiled block run between two PPU events without being
+ *  observable; a write that would reach anything else leaves the block early so the
+ *  interpreter performs it;
+ */
+class BlockCompiler {
+    static final int COMPILE_THRESHOLD = 64;
+    private static final int MIN_INSTRUCTIONS = 2;
+
+    private static final String CPU_CLASS = "emulator/cpu/CPU";
+    private static final String MMU_CLASS = "emulator/memory/MMU";
+    private static final String[] REGISTERS = {"b", "c", "d", "e", "h", "l", null, "a"};
+    private static final int IMMEDIATE = -1;
+
+    // run-time write addresses that need a plain-memory guard
+    private static final int ADDRESS_BC = 1;
+    private static final int ADDRESS_DE = 2;
+    private static final int ADDRESS_HL = 3;
+    private static final int ADDRESS_C = 4;
+    private static final int ADDRESS_STACK = 5;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    // Lookup.defineHiddenClass needs Java 15; older runtimes fall back to Lookup.defineClass
+    private static final Method defineHiddenClass;
+    private static final Object hiddenClassOptions;
+
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(option, 0);
+            method = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, options.getClass());
+        } catch (ReflectiveOperationException e) {
+            // pre-15 runtime
+        }
+        defineHiddenClass = method;
+        hiddenClassOptions = options;
+    }
+
+    /** Blocks translated so far, by every compiler in the process. */
+    static int compiledBlocks() {
+        return classCount.get();
+    }
+
+    /** Called each time the interpreter enters a block; compiles ROM blocks once they are hot. */
+    void profile(Block block) {
+        if (++block.entries == COMPILE_THRESHOLD && block.start() < 0x8000) {
+            compile(block);
+        }
+    }
+
+    private static boolean isControlTransfer(int opCode) {
+        switch (opCode) {
+            case 0x18: case 0x20: case 0x28: case 0x30: case 0x38:
+            case 0xC3: case 0xC2: case 0xCA: case 0xD2: case 0xDA: case 0xE9:
+            case 0xCD: case 0xC4: case 0xCC: case 0xD4: case 0xDC:
+            case 0xC9: case 0xD9: case 0xC0: case 0xC8: case 0xD0: case 0xD8:
+                return true;
+            default:
+                return (opCode & 0xC7) == 0xC7;     // RST
+        }
+    }
+
+    /** Memory that generated code may write without leaving the block: VRAM, WRAM and HRAM. */
+    static boolean plainMemory(int address) {
+        return (address >= 0x8000 && address < 0xA000)
+                || (address >= 0xC000 && address < 0xE000)
+                || (address >= 0xFF80 && address < 0xFFFF);
+    }
+
+    private static boolean translatable(int opCode, int operand) {
+        switch (opCode) {
+            // writes to a fixed address
+            case 0xE0:
+                return plainMemory(0xFF00 + operand);
+            case 0xEA:
+                return plainMemory(operand);
+            case 0x08:
+                return plainMemory(operand) && plainMemory((operand + 1) & 0xFFFF);
+            // STOP, HALT, DI, EI
+            case 0x10: case 0x76: case 0xF3: case 0xFB:
+            // unused opcodes
+            case 0xD3: case 0xDB: case 0xDD: case 0xE3: case 0xE4:
+            case 0xEB: case 0xEC: case 0xED: case 0xF4: case 0xFC: case 0xFD:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Register a write is addressed through when the address is only known at run time,
+     * one of the ADDRESS_* values, or 0 when the instruction has no such write.
+     */
+    private static int writeAddress(int opCode, int operand) {
+        switch (opCode) {
+            case 0x02:
+                return ADDRESS_BC;
+            case 0x12:
+                return ADDRESS_DE;
+            case 0x22: case 0x32: case 0x34: case 0x35: case 0x36:
+            case 0x70: case 0x71: case 0x72: case 0x73: case 0x74: case 0x75: case 0x77:
+                return ADDRESS_HL;
+            case 0xE2:
+                return ADDRESS_C;
+            case 0xC5: case 0xD5: case 0xE5: case 0xF5:
+            case 0xCD: case 0xC4: case 0xCC: case 0xD4: case 0xDC:
+                return ADDRESS_STACK;
+            case 0xCB:
+                // BIT only reads (HL)
+                return (operand & 0x07) == 6 && (operand < 0x40 || operand >= 0x80) ? ADDRESS_HL : 0;
+            default:
+                return (opCode & 0xC7) == 0xC7 ? ADDRESS_STACK : 0;
+        }
+    }
+
+    private void compile(Block block) {
+        int count = 0;
+        while (count < block.length && translatable(block.opCodes[count], block.operands[count])) {
+            count++;
+        }
+        if (count < MIN_INSTRUCTIONS) return;
+
+        Assembler asm = new Assembler();
+        int cycles = 0;
+        int maxCycles;
+        int last = block.opCodes[count - 1];
+        int translated = isControlTransfer(last) ? count - 1 : count;
+        for (int i = 0; i < translated; i++) {
+            int opCode = block.opCodes[i];
+            int operand = block.operands[i];
+            guardWrite(asm, writeAddress(opCode, operand), block.addresses[i], cycles);
+            cycles += opCode == 0xCB ? CPU.opCyclesCB[operand] : CPU.opCycles[opCode];
+            translate(asm, opCode, operand);
+        }
+        if (translated == count) {
+            asm.setPc(block.addresses[count]);
+            asm.returnInt(cycles);
+            maxCycles = cycles;
+        } else {
+            maxCycles = translateControlTransfer(asm, last, block.operands[count - 1],
+                    block.addresses[count - 1], block.addresses[count], cycles);
+        }
+
+        String name = String.format("emulator/cpu/CompiledBlock%04X_%d", block.start(), classCount.incrementAndGet());
+        block.compiled = define(asm.classFile(name));
+        block.compiledMaxCycles = maxCycles;
+    }
+
+    /**
+     * Leaves the block before the instruction at address, having taken cycles so far, unless
+     * its write lands in plain memory. Stack writes check both bytes below SP.
+     */
+    private static void guardWrite(Assembler asm, int register, int address, int cycles) {
+        if (register == 0) return;
+        for (int offset = register == ADDRESS_STACK ? 1 : 0; offset <= (register == ADDRESS_STACK ? 2 : 0); offset++) {
+            switch (register) {
+                case ADDRESS_BC: asm.loadCpu(); asm.invokeCpu("bc", "()I"); break;
+                case ADDRESS_DE: asm.loadCpu(); asm.invokeCpu("de", "()I"); break;
+                case ADDRESS_HL: asm.loadCpu(); asm.invokeCpu("hl", "()I"); break;
+                case ADDRESS_C: asm.loadCpu(); asm.getField("c", "I"); asm.pushInt(0xFF00); asm.op(Assembler.IADD); break;
+                default:
+                    asm.loadCpu();
+                    asm.getField("sp", "I");
+                    asm.pushInt(-offset);
+                    asm.op(Assembler.IADD);
+                    asm.pushInt(0xFFFF);
+                    asm.op(Assembler.IAND);
+                    break;
+            }
+            asm.invokeStatic("emulator/cpu/BlockCompiler", "plainMemory", "(I)Z");
+            int plain = asm.branch(Assembler.IFNE);
+            asm.setPc(address);
+            asm.returnInt(cycles);
+            asm.bindBranch(plain);
+        }
+    }
+
+    private static void translate(Assembler asm, int opCode, int operand) {
+        if (opCode >= 0x40 && opCode < 0x80 && (opCode & 0xF8) != 0x70) {
+            // LD r, r' / LD r, (HL)
+            asm.loadCpu();
+            asm.loadValue(opCode & 0x07, 0);
+            asm.putField(REGISTERS[(opCode >> 3) & 0x07], "I");
+        } else if (opCode >= 0x80 && opCode < 0xC0) {
+            translateAlu((opCode >> 3) & 0x07, asm, opCode & 0x07, 0);
+        } else if ((opCode & 0xC7) == 0xC6) {
+            translateAlu((opCode >> 3) & 0x07, asm, IMMEDIATE, operand);
+        } else if ((opCode & 0xC7) == 0x04 && opCode != 0x34) {
+            translateIncDec(asm, (opCode >> 3) & 0x07, "inc");
+        } else if ((opCode & 0xC7) == 0x05 && opCode != 0x35) {
+            translateIncDec(asm, (opCode >> 3) & 0x07, "dec");
+        } else if ((opCode & 0xC7) == 0x06 && opCode != 0x36) {
+            asm.loadCpu();
+            asm.pushInt(operand);
+            asm.putField(REGISTERS[(opCode >> 3) & 0x07], "I");
+        } else if (opCode == 0x01 || opCode == 0x11 || opCode == 0x21) {
+            // LD BC/DE/HL, nn
+            int pair = opCode >> 4;
+            asm.loadCpu();
+            asm.pushInt(operand >> 8);
+            asm.putField(REGISTERS[pair * 2], "I");
+            asm.loadCpu();
+            asm.pushInt(operand & 0xFF);
+            asm.putField(REGISTERS[pair * 2 + 1], "I");
+        } else if ((opCode & 0xC7) == 0x03) {
+            // INC rr / DEC rr
+            int pair = (opCode >> 4) & 0x03;
+            asm.loadCpu();
+            asm.pushInt(pair);
+            asm.loadCpu();
+            asm.pushInt(pair);
+            asm.invokeCpu("readPair", "(I)I");
+            asm.pushInt((opCode & 0x08) == 0 ? 1 : -1);
+            asm.op(Assembler.IADD);
+            asm.pushInt(0xFFFF);
+            asm.op(Assembler.IAND);
+            asm.invokeCpu("writePair", "(II)V");
+        } else if ((opCode & 0xCF) == 0x09) {
+            // ADD HL, rr
+            asm.loadCpu();
+            asm.loadCpu();
+            asm.pushInt(opCode >> 4);
+            asm.invokeCpu("readPair", "(I)I");
+            asm.invokeCpu("addHL", "(I)V");
+        } else if (opCode == 0x0A || opCode == 0x1A || opCode == 0xF0 || opCode == 0xF2 || opCode == 0xFA) {
+            // LD A, (BC) / (DE) / (n) / (C) / (nn)
+            asm.loadCpu();
+            asm.loadCpu();
+            asm.getField("mmu", "L" + MMU_CLASS + ";");
+            switch (opCode) {
+                case 0x0A: asm.loadCpu(); asm.invokeCpu("bc", "()I"); break;
+                case 0x1A: asm.loadCpu(); asm.invokeCpu("de", "()I"); break;
+                case 0xF0: asm.pushInt(0xFF00 + operand); break;
+                case 0xF2: asm.loadCpu(); asm.getField("c", "I"); asm.pushInt(0xFF00); asm.op(Assembler.IADD); break;
+                default: asm.pushInt(operand); break;
+            }
+            asm.invokeMmuRead();
+            asm.putField("a", "I");
+        } else if (opCode == 0x00) {
+            // NOP
+        } else {
+            // everything else, including the guarded writes, runs through the interpreter's handler
+            interpret(asm, opCode, operand);
+        }
+    }
+
+    private static void translateAlu(int operation, Assembler asm, int source, int immediate) {
+        asm.loadCpu();
+        asm.loadValue(source, immediate);
+        switch (operation) {
+            case 0:
+            case 2:
+            case 7:
+                asm.pushInt(0);
+                break;
+            case 1:
+            case 3:
+                asm.loadCpu();
+                asm.invokeCpu("getCarry", "()I");
+                break;
+        }
+        switch (operation) {
+            case 0: case 1: asm.invokeCpu("add", "(II)V"); break;
+            case 2: case 3: asm.invokeCpu("sub", "(II)V"); break;
+            case 4: asm.invokeCpu("and", "(I)V"); break;
+            case 5: asm.invokeCpu("xor", "(I)V"); break;
+            case 6: asm.invokeCpu("or", "(I)V"); break;
+            default: asm.invokeCpu("cp", "(II)V"); break;
+        }
+    }
+
+    private static void translateIncDec(Assembler asm, int reg, String method) {
+        asm.loadCpu();
+        asm.loadCpu();
+        asm.loadCpu();
+        asm.getField(REGISTERS[reg], "I");
+        asm.invokeCpu(method, "(I)I");
+        asm.putField(REGISTERS[reg], "I");
+    }
+
+    /**
+     * Emits the block's final jump, call or return at address; returns the worst-case
+     * cycles of the whole block.
+     */
+    private static int translateControlTransfer(Assembler asm, int opCode, int operand,
+                                                int address, int next, int cycles) {
+        int taken = cycles + CPU.opCycleBranched[opCode];
+        int notTaken = cycles + CPU.opCycles[opCode];
+        int form = opCode & 0xE7;
+        boolean conditional = form == 0x20 || form == 0xC0 || form == 0xC2 || form == 0xC4;
+        int skip = -1;
+        if (conditional) {
+            // cc field: NZ, Z, NC, C; branch to the fall-through when the condition fails
+            int cc = (opCode >> 3) & 0x03;
+            asm.loadCpu();
+            asm.getField("flagResult", "I");
+            asm.pushInt(cc < 2 ? 0xFF : 0x100);
+            asm.op(Assembler.IAND);
+            skip = asm.branch(cc == 0 || cc == 3 ? Assembler.IFEQ : Assembler.IFNE);
+        } else {
+            taken = notTaken;
+        }
+
+        if (opCode == 0xE9) {
+            asm.loadCpu();
+            asm.loadCpu();
+            asm.invokeCpu("hl", "()I");
+            asm.putField("pc", "I");
+        } else if (opCode == 0xC9 || opCode == 0xD9 || form == 0xC0) {
+            asm.loadCpu();
+            asm.invokeCpu("ret", "()V");
+        } else if (opCode < 0x40) {
+            asm.setPc((next + (byte) operand) & 0xFFFF);
+        } else if (form == 0xC2 || opCode == 0xC3) {
+            asm.setPc(operand);
+        } else {
+            // CALL and RST push pc, so it has to point past the instruction first
+            guardWrite(asm, ADDRESS_STACK, address, cycles);
+            asm.setPc(next);
+            interpret(asm, (opCode & 0xC7) == 0xC7 ? opCode : 0xCD, operand);
+        }
+        asm.returnInt(taken);
+
+        if (conditional) {
+            asm.bindBranch(skip);
+            asm.setPc(next);
+            asm.returnInt(notTaken);
+        }
+        return Math.max(taken, notTaken);
+    }
+
+    /** Runs one instruction through the interpreter's handler. */
+    private static void interpret(Assembler asm, int opCode, int operand) {
+        asm.loadCpu();
+        asm.pushInt(operand);
+        asm.putField("operand", "I");
+        asm.loadCpu();
+        asm.pushInt(opCode);
+        asm.invokeCpu("executeOpCode", "(I)I");
+        asm.op(Assembler.POP);
+    }
+
+    private static CompiledBlock define(byte[] classFile) {
+        try {
+            MethodHandles.Lookup lookup = LOOKUP;
+            Class<?> type;
+            if (defineHiddenClass != null) {
+                lookup = (MethodHandles.Lookup) defineHiddenClass.invoke(LOOKUP, classFile, false, hiddenClassOptions);
+                type = lookup.lookupClass();
+            } else {
+                type = LOOKUP.defineClass(classFile);
+            }
+            return (CompiledBlock) lookup.findConstructor(type, MethodType.methodType(void.class)).invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException("could not load compiled block", t);
+        }
+    }
+
+    /**
+     *  Minimal class file writer for a single class implementing CompiledBlock;
+     *  Emits version 49 class files, which are verified by type inference and
+     *  therefore need no StackMapTable for the forward branches of guards and conditions;
+     */
+    private static class Assembler {
+        static final int POP = 0x57;
+        static final int IADD = 0x60;
+        static final int IAND = 0x7E;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9A;
+        private static final int ALOAD_0 = 0x2A;
+        private static final int ALOAD_1 = 0x2B;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int LDC_W = 0x13;
+        private static final int IRETURN = 0xAC;
+        private static final int RETURN = 0xB1;
+        private static final int GETFIELD = 0xB4;
+        private static final int PUTFIELD = 0xB5;
+        private static final int INVOKEVIRTUAL = 0xB6;
+        private static final int INVOKESPECIAL = 0xB7;
+        private static final int INVOKESTATIC = 0xB8;
+
+        private final ByteWriter pool = new ByteWriter();
+        private final Map<String, Integer> constants = new HashMap<>();
+        private int poolCount = 1;
+        private final ByteWriter code = new ByteWriter();
+
+        void op(int opCode) {
+            code.u1(opCode);
+        }
+
+        void loadCpu() {
+            code.u1(ALOAD_1);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                code.u1(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.u1(BIPUSH);
+                code.u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.u1(SIPUSH);
+                code.u2(value);
+            } else {
+                code.u1(LDC_W);
+                code.u2(integer(value));
+            }
+        }
+
+        void getField(String name, String descriptor) {
+            code.u1(GETFIELD);
+            code.u2(member(9, CPU_CLASS, name, descriptor));
+        }
+
+        void putField(String name, String descriptor) {
+            code.u1(PUTFIELD);
+            code.u2(member(9, CPU_CLASS, name, descriptor));
+        }
+
+        void invokeCpu(String name, String descriptor) {
+            code.u1(INVOKEVIRTUAL);
+            code.u2(member(10, CPU_CLASS, name, descriptor));
+        }
+
+        void invokeStatic(String owner, String name, String descriptor) {
+            code.u1(INVOKESTATIC);
+            code.u2(member(10, owner, name, descriptor));
+        }
+
+        void invokeMmuRead() {
+            code.u1(INVOKEVIRTUAL);
+            code.u2(member(10, MMU_CLASS, "readByte", "(I)I"));
+        }
+
+        /** Pushes a register, the byte at (HL) for source 6, or the immediate. */
+        void loadValue(int source, int immediate) {
+            if (source == IMMEDIATE) {
+                pushInt(immediate);
+            } else if (source == 6) {
+                loadCpu();
+                getField("mmu", "L" + MMU_CLASS + ";");
+                loadCpu();
+                invokeCpu("hl", "()I");
+                invokeMmuRead();
+            } else {
+                loadCpu();
+                getField(REGISTERS[source], "I");
+            }
+        }
+
+        void setPc(int pc) {
+            loadCpu();
+            pushInt(pc);
+            putField("pc", "I");
+        }
+
+        void returnInt(int value) {
+            pushInt(value);
+            code.u1(IRETURN);
+        }
+
+        /** Emits a forward branch and returns its position for bindBranch. */
+        int branch(int opCode) {
+            int at = code.length;
+            code.u1(opCode);
+            code.u2(0);
+            return at;
+        }
+
+        void bindBranch(int at) {
+            code.patch2(at + 1, code.length - at);
+        }
+
+        private int utf8(String value) {
+            return constant("U" + value, () -> {
+                pool.u1(1);
+                pool.u2(value.length());
+                for (int i = 0; i < value.length(); i++) pool.u1(value.charAt(i));
+            });
+        }
+
+        private int integer(int value) {
+            return constant("I" + value, () -> {
+                pool.u1(3);
+                pool.u4(value);
+            });
+        }
+
+        private int type(String name) {
+            int nameIndex = utf8(name);
+            return constant("C" + name, () -> {
+                pool.u1(7);
+                pool.u2(nameIndex);
+            });
+        }
+
+        private int member(int tag, String owner, String name, String descriptor) {
+            int ownerIndex = type(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = constant("N" + name + descriptor, () -> {
+                pool.u1(12);
+                pool.u2(nameIndex);
+                pool.u2(descriptorIndex);
+            });
+            return constant(tag + owner + "." + name + descriptor, () -> {
+                pool.u1(tag);
+                pool.u2(ownerIndex);
+                pool.u2(nameAndType);
+            });
+        }
+
+        private int constant(String key, Runnable write) {
+            Integer index = constants.get(key);
+            if (index == null) {
+                write.run();
+                index = poolCount++;
+                constants.put(key, index);
+            }
+            return index;
+        }
+
+        /** Wraps the emitted code as run(CPU) of a public final class with a default constructor. */
+        byte[] classFile(String name) {
+            int thisClass = type(name);
+            int superClass = type("java/lang/Object");
+            int blockInterface = type("emulator/cpu/CompiledBlock");
+            int objectInit = member(10, "java/lang/Object", "<init>", "()V");
+            int codeName = utf8("Code");
+            int initName = utf8("<init>");
+            int initDescriptor = utf8("()V");
+            int runName = utf8("run");
+            int runDescriptor = utf8("(L" + CPU_CLASS + ";)I");
+
+            ByteWriter init = new ByteWriter();
+            init.u1(ALOAD_0);
+            init.u1(INVOKESPECIAL);
+            init.u2(objectInit);
+            init.u1(RETURN);
+
+            ByteWriter out = new ByteWriter();
+            out.u4(0xCAFEBABE);
+            out.u2(0);
+            out.u2(49);
+            out.u2(poolCount);
+            out.bytes(pool);
+            out.u2(0x0031);     // public final super
+            out.u2(thisClass);
+            out.u2(superClass);
+            out.u2(1);
+            out.u2(blockInterface);
+            out.u2(0);          // fields
+            out.u2(2);          // methods
+            method(out, initName, initDescriptor, codeName, 1, 1, init);
+            method(out, runName, runDescriptor, codeName, 8, 2, code);
+            out.u2(0);          // attributes
+            return out.toByteArray();
+        }
+
+        private static void method(ByteWriter out, int name, int descriptor, int codeName,
+                                   int maxStack, int maxLocals, ByteWriter body) {
+            out.u2(0x0001);     // public
+            out.u2(name);
+            out.u2(descriptor);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + body.length);
+            out.u2(maxStack);
+            out.u2(maxLocals);
+            out.u4(body.length);
+            out.bytes(body);
+            out.u2(0);          // exception table
+            out.u2(0);          // code attributes
+        }
+    }
+
+    private static class ByteWriter {
+        private byte[] data = new byte[256];
+        private int length;
+
+        void u1(int value) {
+            if (length == data.length) data = Arrays.copyOf(data, length * 2);
+            data[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void patch2(int at, int value) {
+            data[at] = (byte) (value >> 8);
+            data[at + 1] = (byte) value;
+        }
+
+        void bytes(ByteWriter other) {
+            for (int i = 0; i < other.length; i++) u1(other.data[i]);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
@@ -1,23 +1,23 @@
 package emulator.cpu;
 
 import emulator.memory.MMU;
+
+import java.util.function.IntUnaryOperator;
+
 public class CPU {
 
-    // GP registers, stack pointers, prog. counter, register pairings
-    private final Register A;
-    private final Register B;
-    private final Register C;
-    private final Register D;
-    private final Register E;
-    private final Register H;
-    private final Register L;
-    private final SpecialRegister sp;
-    private final SpecialRegister pc;
-    private final RegisterPair BC;
-    private final RegisterPair DE;
-    private final RegisterPair HL;
+    // GP registers, stack pointers, prog. counter; pairs are combined inline (BC, DE, HL)
+    // registers, flagResult and the ALU helpers are package-private for compiled blocks
+    int a;
+    int b;
+    int c;
+    int d;
+    int e;
+    int h;
+    int l;
+    int sp;
+    int pc;
     private boolean interruptsEnabled;
-    public String testOutput = "";
 
     public static final int[] opCycles = {
 //          0  1  2  3  4  5  6  7  8  9  A  B  C  D  E  F
@@ -39,7 +39,28 @@ public class CPU {
             3, 3, 2, 1, 0, 4, 2, 4, 3, 2, 4, 1, 0, 0, 2, 4, // F
     };
 
-    private static final int[] opCycleBranched = {
+    // instruction length in bytes, including the opcode and any immediate operand
+    static final int[] opLengths = {
+//          0  1  2  3  4  5  6  7  8  9  A  B  C  D  E  F
+            1, 3, 1, 1, 1, 1, 2, 1, 3, 1, 1, 1, 1, 1, 2, 1, // 0
+            2, 3, 1, 1, 1, 1, 2, 1, 2, 1, 1, 1, 1, 1, 2, 1, // 1
+            2, 3, 1, 1, 1, 1, 2, 1, 2, 1, 1, 1, 1, 1, 2, 1, // 2
+            2, 3, 1, 1, 1, 1, 2, 1, 2, 1, 1, 1, 1, 1, 2, 1, // 3
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 4
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 5
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 6
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 7
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 8
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 9
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // A
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // B
+            1, 1, 3, 3, 3, 1, 2, 1, 1, 1, 3, 2, 3, 3, 2, 1, // C
+            1, 1, 3, 1, 3, 1, 2, 1, 1, 1, 3, 1, 3, 1, 2, 1, // D
+            2, 1, 1, 1, 1, 1, 2, 1, 2, 1, 3, 1, 1, 1, 2, 1, // E
+            2, 1, 1, 1, 1, 1, 2, 1, 2, 1, 3, 1, 1, 1, 2, 1, // F
+    };
+
+    static final int[] opCycleBranched = {
             1, 3, 2, 2, 1, 1, 2, 1, 5, 2, 2, 2, 1, 1, 2, 1,
             1, 3, 2, 2, 1, 1, 2, 1, 3, 2, 2, 2, 1, 1, 2, 1,
             3, 3, 2, 2, 1, 1, 2, 1, 3, 2, 2, 2, 1, 1, 2, 1,
@@ -58,7 +79,7 @@ public class CPU {
             3, 3, 2, 1, 0, 4, 2, 4, 3, 2, 4, 1, 0, 0, 2, 4
     };
 
-    private static final int[] opCyclesCB = {
+    static final int[] opCyclesCB = {
             2, 2, 2, 2, 2, 2, 4, 2, 2, 2, 2, 2, 2, 2, 4, 2,
             2, 2, 2, 2, 2, 2, 4, 2, 2, 2, 2, 2, 2, 2, 4, 2,
             2, 2, 2, 2, 2, 2, 4, 2, 2, 2, 2, 2, 2, 2, 4, 2,
@@ -77,1198 +98,711 @@ public class CPU {
             2, 2, 2, 2, 2, 2, 4, 2, 2, 2, 2, 2, 2, 2, 4, 2
     };
 
-    // flags
-    private final Flags F;
+    /*
+     * Flags are evaluated lazily. 8-bit ALU operations only record their operands and
+     * result; F is rebuilt by getF() when PUSH AF, DAA or a debugger needs all of it.
+     * Z and C are always taken from flagResult (low byte zero, bit 8 set), so conditional
+     * branches and ADC/SBC never need to rebuild F. N and H depend on flagOp.
+     */
+    private static final int FLAG_ZERO = 0x80;
+    private static final int FLAG_OPERATION = 0x40;
+    private static final int FLAG_HALF_CARRY = 0x20;
+    private static final int FLAG_CARRY = 0x10;
+
+    private static final int FLAGS_SET = 0;     // N and H are held in f
+    private static final int FLAGS_ADD = 1;     // N clear, H from flagX + flagY
+    private static final int FLAGS_SUB = 2;     // N set, H from flagX - flagY
+    private static final int FLAGS_AND = 3;     // N clear, H set
+    private static final int FLAGS_LOGIC = 4;   // N and H clear
+    private int flagOp;
+    private int flagX;
+    private int flagY;
+    int flagResult;
+    private int f;
+
+    // decoded opcode handlers, indexed by opcode
+    private final Runnable[] instructions = new Runnable[0x100];
+    private final Runnable[] cbInstructions = new Runnable[0x100];
+    private boolean branchTaken;
+
+    // immediate operand of the instruction being executed, or the CB opcode
+    int operand;
+
+    // decoded blocks, and the block being replayed with the index of its next instruction
+    private final BlockCache blockCache;
+    private Block block;
+    private int blockIndex;
+
+    // JIT tier for hot ROM blocks; -Demulator.jit=false keeps the plain interpreter
+    private BlockCompiler compiler;
 
     // emulator.memory.memory
-    private final MMU mmu;
+    final MMU mmu;
 
-    public boolean stop;
+    // set from other threads to end GameBoy.run
+    public volatile boolean stop;
     private boolean halt;
 
+    // machine cycles executed so far, the part of them skipped in idle loops,
+    // and the opt-in execution tracer and profiler
+    private long cycleCount;
+    private long idleCyclesSkipped;
+    private Tracer tracer;
+    private Profiler profiler;
+
     public CPU (MMU mmu) {
-        A = new Register(0x01);
-        B  = new Register(0x00);
-        C = new Register(0x13);
-        D = new Register(0x00);
-        E = new Register(0xD8);
-        H = new Register(0x01);
-        L = new Register(0x4D);
-        F = new Flags(0xB0);
-        sp = new SpecialRegister(0xFFFE);
-        pc = new SpecialRegister(0x0100);
-        BC = new RegisterPair(B, C);
-        DE = new RegisterPair(D, E);
-        HL = new RegisterPair(H, L);
+        a = 0x01;
+        b = 0x00;
+        c = 0x13;
+        d = 0x00;
+        e = 0xD8;
+        h = 0x01;
+        l = 0x4D;
+        setFlags(0xB0);
+        sp = 0xFFFE;
+        pc = 0x0100;
         stop = false;
         halt = false;
         interruptsEnabled = false;
         this.mmu = mmu;
+        blockCache = new BlockCache(mmu, () -> block = null);
+        mmu.setClock(() -> cycleCount);
+        setJitEnabled(Boolean.parseBoolean(System.getProperty("emulator.jit", "true")));
         mmu.writeByte(0xFF44, 0x90);
-    }
-    private void add(Register dst, Register src, int carry){
-        int val = dst.read() + src.read() + carry;
-        F.setZero(((val & 0xFF) == 0) ? 1 : 0);
-        F.setOperation(0);
-        F.setCarry((val > 255) ? 1 : 0);
-        if (halfCarryAdd8(dst.read(), src.read()) == 1 ||
-                halfCarryAdd8(dst.read(), carry) == 1 ||
-                halfCarryAdd8(carry, src.read()) == 1 ||
-                halfCarryAdd8(dst.read() + carry, src.read()) == 1) {
-            F.setHalfCarry(1);
-        } else F.setHalfCarry(0);
-        dst.set(val & 0xFF);
-    }
-
-    private void add(Register dst, int value, int carry){
-        int val = dst.read() + value + carry;
-        F.setZero(((val & 0xFF) == 0) ? 1 : 0);
-        F.setOperation(0);
-        F.setCarry((val > 255) ? 1 : 0);
-        if (halfCarryAdd8(dst.read(), value) == 1 ||
-                halfCarryAdd8(dst.read(), carry) == 1 ||
-                halfCarryAdd8(carry, value) == 1 ||
-                halfCarryAdd8(dst.read() + carry, value) == 1) {
-            F.setHalfCarry(1);
-        } else F.setHalfCarry(0);
-        dst.set(val & 0xFF);
-    }
-
-    private void add(RegisterPair dst, RegisterPair src) {
-        int val = dst.read() + src.read();
-        F.setOperation(0);
-        F.setCarry(val > 0xFFFF ? 1 : 0);
-        F.setHalfCarry(halfCarryAdd16(dst.read(),src.read()));
-        dst.set(val);
-    }
-
-    private void add(RegisterPair dst, Register src) {
-        int val = dst.read() + src.read();
-        F.setOperation(0);
-        F.setCarry(val > 0xFFFF ? 1 : 0);
-        dst.set(val);
-    }
-
-    private void addInd(Register dst, RegisterPair src, int carry){
-        int read = mmu.readByte(src.read());
-        int val = dst.read() + read + carry;
-        F.setZero(((val & 0xFF) == 0) ? 1 : 0);
-        F.setOperation(0);
-        F.setCarry((val > 0xFF) ? 1 : 0);
-        F.setHalfCarry(halfCarryAdd8(dst.read(), read+carry) + halfCarryAdd8(read, carry));
-        dst.set(val & 0xFF);
-    }
-
-    private void sub(Register dst, Register src, int carry){
-        int val = dst.read() - src.read() - carry;
-        F.setZero(((val & 0xff) == 0) ? 1 : 0);
-        F.setOperation(1);
-        F.setCarry((val < 0) ? 1 : 0);
-
-        if (carry == 0) F.setHalfCarry(halfCarrySub8(dst.read(), src.read()));
-
-        else if (src.read() == 0) F.setHalfCarry(halfCarrySub8(dst.read(), carry));
-        else if (dst.read() == 0) F.setHalfCarry(1);
-        else {
-            if (halfCarrySub8(dst.read()- src.read(), carry) == 1 ||
-                halfCarrySub8(dst.read() , src.read()) == 1) {
-                F.setHalfCarry(1);
-            } else {
-                F.setHalfCarry(0);
-            }
-        }
-        dst.set(0xFF & val);
-    }
-
-    private void sub(Register dst, int value, int carry){
-        int val = dst.read() - value - carry;
-        F.setZero(((val & 0xFF)== 0) ? 1 : 0);
-        F.setOperation(1);
-        F.setCarry((val < 0) ? 1 : 0);
-        if (carry == 0) F.setHalfCarry(halfCarrySub8(dst.read(), value));
-        else if (value == 0) F.setHalfCarry(halfCarrySub8(dst.read(), carry));
-        else if (dst.read() == 0) F.setHalfCarry(1);
-        else {
-            if (halfCarrySub8(dst.read()- value, carry) == 1 ||
-                halfCarrySub8(dst.read() , value) == 1) {
-                F.setHalfCarry(1);
-            } else {
-                F.setHalfCarry(0);
-            }
-        }
-        dst.set(val & 0xFF);
-    }
-
-    private void subInd(Register dst, RegisterPair src, int carry){
-        int read = mmu.readByte(src.read());
-        int val = dst.read() - read - carry;
-        F.setZero(((val & 0xFF) == 0) ? 1 : 0);
-        F.setOperation(1);
-        F.setCarry((val < 0) ? 1 : 0);
-        F.setHalfCarry(halfCarrySub8(dst.read() - read, carry) +
-                        halfCarrySub8(dst.read(), read));
-        dst.set(val & 0xFF);
-    }
-
-    private void load(Register dst, Register src) {
-        dst.set(src.read());
-    }
-
-    private void loadImm8(Register dst, int val) {
-        dst.set(val);
-    }
-
-    private void loadImm16(RegisterPair dst, int val) {
-        dst.set(val);
-    }
-
-    private void loadImm16(int val, Register src) {
-        mmu.writeWord(val, src.read());
-    }
-
-    private void loadDstInd(RegisterPair dst, Register src) {
-        mmu.writeByte(dst.read(), src.read());
-    }
-
-    private void loadDstInd(int location, Register src) {
-        mmu.writeByte(location, src.read());
-    }
-
-    private void loadDstInd(Register dst, Register src) {
-        mmu.writeByte(dst.read() + 0xFF00, src.read());
-    }
-
-    private void loadSrcInd(Register dst, RegisterPair src) {
-        dst.set(mmu.readByte(src.read()));
-    }
-
-    private void loadSrcInd(Register dst, Register src) {
-        dst.set(mmu.readByte(src.read()+0xFF00));
-    }
-
-    private void inc(Register dst) {
-        F.setOperation(0);
-        F.setHalfCarry(halfCarryAdd8(dst.read(), 1));
-        F.setZero(dst.increment() == 0 ? 1 : 0);
-    }
-
-    private void inc(RegisterPair dst) {
-        dst.increment();
-    }
-
-    private void incInd(RegisterPair dst) {
-        F.setOperation(0);
-        int val = mmu.readByte(dst.read());
-        F.setHalfCarry(halfCarryAdd8(val, 1));
-        val++;
-        mmu.writeByte(dst.read(), val);
-        F.setZero((val & 0xFF) == 0 ? 1 : 0);
+        buildInstructionTable();
+        buildCBTable();
     }
 
-    private void decInd(RegisterPair dst) {
-        F.setOperation(1);
-        int val = mmu.readByte(dst.read());
-        F.setHalfCarry(halfCarrySub8(val, 1));
-        val--;
-        mmu.writeByte(dst.read(), val);
-        F.setZero(val == 0 ? 1 : 0);
+    int bc() {
+        return b << 8 | c;
     }
 
-    private void dec(RegisterPair dst) {
-        dst.decrement();
+    int de() {
+        return d << 8 | e;
     }
 
-    private void dec(Register dst) {
-        F.setOperation(1);
-        F.setHalfCarry(halfCarrySub8(dst.read(), 1));
-        F.setZero(dst.decrement() == 0 ? 1 : 0);
+    int hl() {
+        return h << 8 | l;
     }
 
-    private void and(Register dst, Register src) {
-        int val = dst.read() & src.read();
-        F.setOperation(0);
-        F.setZero(val == 0 ? 1 : 0);
-        F.setCarry(0);
-        F.setHalfCarry(1);
-        dst.set(val & 0xFF);
+    private void setBC(int val) {
+        b = (val >> 8) & 0xFF;
+        c = val & 0xFF;
     }
 
-    private void and(Register dst, int value) {
-        int val = dst.read() & value;
-        F.setOperation(0);
-        F.setZero(val == 0 ? 1 : 0);
-        F.setCarry(0);
-        F.setHalfCarry(1);
-        dst.set(val & 0xFF);
+    private void setDE(int val) {
+        d = (val >> 8) & 0xFF;
+        e = val & 0xFF;
     }
 
-    private void andInd(Register dst, RegisterPair src) {
-        int val = dst.read() & mmu.readByte(src.read());
-        F.setOperation(0);
-        F.setZero(val == 0 ? 1 : 0);
-        F.setCarry(val > 0xFF ? 1 : 0);
-        F.setHalfCarry(1);
-        dst.set(dst.read() & mmu.readByte(src.read()));
+    private void setHL(int val) {
+        h = (val >> 8) & 0xFF;
+        l = val & 0xFF;
     }
 
-    private void or(Register dst, Register src) {
-        int val = dst.read() | src.read();
-        F.setOperation(0);
-        F.setZero(val == 0 ? 1 : 0);
-        F.setCarry(0);
-        F.setHalfCarry(0);
-        dst.set(val & 0xFF);
-    }
-
-    private void or(Register dst, int value) {
-        int val = dst.read() | value;
-        F.setOperation(0);
-        F.setZero(val == 0 ? 1 : 0);
-        F.setCarry(0);
-        F.setHalfCarry(0);
-        dst.set(val & 0xFF);
-    }
-
-    private void orInd(Register dst, RegisterPair src) {
-        int val = dst.read() | mmu.readByte(src.read());
-        F.setOperation(0);
-        F.setZero(val == 0 ? 1 : 0);
-        F.setCarry(0);
-        F.setHalfCarry(0);
-        dst.set(val & 0xFF);
-    }
-
-    private void xor(Register dst, Register src) {
-        int val = dst.read() ^ src.read();
-        F.setOperation(0);
-        F.setZero((val & 0xFF) == 0 ? 1 : 0);
-        F.setCarry(0);
-        F.setHalfCarry(0);
-        dst.set(val & 0xFF);
-    }
-
-    private void xor(Register dst, int value) {
-        int val = dst.read() ^ value;
-        F.setOperation(0);
-        F.setZero(val == 0 ? 1 : 0);
-        F.setCarry(0);
-        F.setHalfCarry(0);
-        dst.set(val & 0xFF);
-    }
-
-    private void xorInd(Register dst, RegisterPair src) {
-        int val = dst.read() ^ mmu.readByte(src.read());
-        F.setOperation(0);
-        F.setZero(val == 0 ? 1 : 0);
-        F.setCarry(0);
-        F.setHalfCarry(0);
-        dst.set(val & 0xFF);
-    }
-
-    private void cp(Register dst, Register src) {
-        int val = dst.read() - src.read();
-        F.setZero((val == 0) ? 1 : 0);
-        F.setOperation(1);
-        F.setCarry((val < 0) ? 1 : 0);
-        F.setHalfCarry(halfCarrySub8(dst.read(), src.read()));
+    /** Reads an 8-bit register by its opcode encoding: B, C, D, E, H, L, -, A. */
+    private int readRegister(int reg) {
+        switch (reg) {
+            case 0: return b;
+            case 1: return c;
+            case 2: return d;
+            case 3: return e;
+            case 4: return h;
+            case 5: return l;
+            default: return a;
+        }
     }
 
-    private void cp(Register dst, int value) {
-        int val = dst.read() - value;
-        F.setZero((val == 0) ? 1 : 0);
-        F.setOperation(1);
-        F.setCarry((val < 0) ? 1 : 0);
-        F.setHalfCarry(halfCarrySub8(dst.read(), value));
+    private void writeRegister(int reg, int val) {
+        switch (reg) {
+            case 0: b = val; break;
+            case 1: c = val; break;
+            case 2: d = val; break;
+            case 3: e = val; break;
+            case 4: h = val; break;
+            case 5: l = val; break;
+            default: a = val; break;
+        }
     }
 
-    private void cpInd(Register dst, RegisterPair src) {
-        int val = dst.read() - mmu.readByte(src.read());
-        F.setZero((val == 0) ? 1 : 0);
-        F.setOperation(1);
-        F.setCarry((val < 0) ? 1 : 0);
-        F.setHalfCarry(halfCarrySub8(dst.read(), mmu.readByte(src.read())));
+    /** Reads a register pair by its opcode encoding: BC, DE, HL, SP. */
+    int readPair(int pair) {
+        switch (pair) {
+            case 0: return bc();
+            case 1: return de();
+            case 2: return hl();
+            default: return sp;
+        }
     }
 
-    private void rlc(Register dst) {
-        F.setCarry(dst.read() >> 7);
-        int value = Integer.rotateLeft(dst.read(), 1);
-        value |= F.getCarry();
-        value &= 0xff;
-        F.setZero(value == 0 ? 1 : 0);
-        dst.set(value);
-
+    void writePair(int pair, int val) {
+        switch (pair) {
+            case 0: setBC(val); break;
+            case 1: setDE(val); break;
+            case 2: setHL(val); break;
+            default: sp = val & 0xFFFF; break;
+        }
     }
 
-    private void rlc(RegisterPair dst) {
-        int value = mmu.readByte(dst.read());
-        F.setCarry(value >> 7);
-        value = Integer.rotateLeft(value, 1);
-        value |= F.getCarry();
-        value &= 0xff;
-        F.setZero(value == 0 ? 1 : 0);
-        mmu.writeByte(dst.read(), value);
+    int getCarry() {
+        return (flagResult >> 8) & 0x01;
     }
 
-    private void rl(Register dst) {
-        int prev = F.getCarry();
-        F.setCarry(dst.read() >> 7);
-        int value = Integer.rotateLeft(dst.read(), 1);
-        value |= prev;
-        value &= 0xff;
-        F.setZero(value == 0 ? 1 : 0);
-        dst.set(value & 0xFF);
+    private int zeroFlag() {
+        return (flagResult & 0xFF) == 0 ? FLAG_ZERO : 0;
     }
 
-    private void rl(RegisterPair dst) {
-        int prev = F.getCarry();
-        int value = mmu.readByte(dst.read());
-        F.setCarry(value >> 7);
-        value = Integer.rotateLeft(value, 1);
-        value |= prev;
-        value &= 0xff;
-        F.setZero(value == 0 ? 1 : 0);
-        mmu.writeByte(dst.read(), value);
+    /** Materialises F from the last flag-setting operation. */
+    public int getF() {
+        int flags = zeroFlag() | ((flagResult >> 4) & FLAG_CARRY);
+        switch (flagOp) {
+            case FLAGS_ADD:
+                return flags | (((flagX ^ flagY ^ flagResult) << 1) & FLAG_HALF_CARRY);
+            case FLAGS_SUB:
+                return flags | FLAG_OPERATION | (((flagX ^ flagY ^ flagResult) << 1) & FLAG_HALF_CARRY);
+            case FLAGS_AND:
+                return flags | FLAG_HALF_CARRY;
+            case FLAGS_LOGIC:
+                return flags;
+            default:
+                return flags | (f & (FLAG_OPERATION | FLAG_HALF_CARRY));
+        }
     }
 
-    private void sla(Register dst) {
-        F.setCarry(dst.read() >> 7);
-        int value = dst.read() << 1;
-        value &= 0xFE;
-        value &= 0xff;
-        F.setZero(value == 0 ? 1 : 0);
-        dst.set(value);
+    /** Sets all four flags at once, for the instructions that do not go through the ALU. */
+    private void setFlags(int flags) {
+        f = flags;
+        flagOp = FLAGS_SET;
+        flagResult = ((flags & FLAG_ZERO) == 0 ? 1 : 0) | ((flags & FLAG_CARRY) << 4);
     }
 
-    private void sla(RegisterPair dst) {
-        int value = mmu.readByte(dst.read());
-        F.setCarry(value >> 7);
-        value = value << 1;
-        value &= 0xFE;
-        value &= 0xff;
-        F.setZero(value == 0 ? 1 : 0);
-        mmu.writeByte(dst.read(), value);
+    void add(int value, int carry){
+        int val = a + value + carry;
+        flagOp = FLAGS_ADD;
+        flagX = a;
+        flagY = value;
+        flagResult = val;
+        a = val & 0xFF;
     }
 
-    private void swap(Register dst) {
-        int r = dst.read();
-        int value = ((r << 4) | (r >> 4)) & 0xFF;
-        dst.set(value);
-        F.setZero(value == 0 ? 1 : 0);
-        F.setOperation(0);
-        F.setHalfCarry(0);
-        F.setCarry(0);
+    void addHL(int value) {
+        int hl = hl();
+        int val = hl + value;
+        int flags = zeroFlag();
+        if (val > 0xFFFF) flags |= FLAG_CARRY;
+        if (halfCarryAdd16(hl, value) == 1) flags |= FLAG_HALF_CARRY;
+        setFlags(flags);
+        setHL(val);
     }
 
-    private void swap(RegisterPair dst) {
-        int r = mmu.readByte(dst.read());
-        int value = ((r << 4) | (r >> 4)) & 0xFF;
-        mmu.writeByte(dst.read(), value);
-        F.setZero(value == 0 ? 1 : 0);
-        F.setOperation(0);
-        F.setHalfCarry(0);
-        F.setCarry(0);
+    void sub(int value, int carry){
+        cp(value, carry);
+        a = flagResult & 0xFF;
     }
 
-    private void rrc(Register dst) {
-        F.setCarry(dst.read() & 0x01);
-        int value = Integer.rotateRight(dst.read(), 1);
-        value |= F.getCarry() << 7;
-        value &= 0xff;
-        F.setZero(value == 0 ? 1 : 0);
-        dst.set(value & 0xFF);
+    void cp(int value, int carry) {
+        flagOp = FLAGS_SUB;
+        flagX = a;
+        flagY = value;
+        flagResult = a - value - carry;
     }
 
-    private void rrc(RegisterPair dst) {
-        int value = mmu.readByte(dst.read());
-        F.setCarry(value & 0x01);
-        value = Integer.rotateRight(value, 1);
-        value |= F.getCarry() << 7;
-        value &= 0xff;
-        F.setZero(value == 0 ? 1 : 0);
-        mmu.writeByte(dst.read(), value);
+    int inc(int value) {
+        int val = (value + 1) & 0xFF;
+        flagOp = FLAGS_ADD;
+        flagX = value;
+        flagY = 1;
+        flagResult = (flagResult & 0x100) | val;
+        return val;
     }
 
-    private void rr(Register dst) {
-        int value = Integer.rotateRight(dst.read(), 1);
-        value &= 0xFF;
-        value |= (F.getCarry() << 7);
-        F.setCarry(dst.read() & 0x01);
-        F.setZero((value == 0) ? 1 : 0);
-        F.setOperation(0);
-        F.setHalfCarry(0);
-        dst.set(value);
+    int dec(int value) {
+        int val = (value - 1) & 0xFF;
+        flagOp = FLAGS_SUB;
+        flagX = value;
+        flagY = 1;
+        flagResult = (flagResult & 0x100) | val;
+        return val;
     }
 
-    private void rr(RegisterPair dst) {
-        int value = mmu.readByte(dst.read());
-        int prev = F.getCarry();
-        F.setCarry(value & 0x01);
-        value = Integer.rotateRight(value, 1);
-        value &= 0xFF;
-        value |= (prev << 7);
-        F.setZero((value == 0) ? 1 : 0);
-        F.setOperation(0);
-        F.setHalfCarry(0);
-        mmu.writeByte(dst.read(), value);
+    void and(int value) {
+        a &= value;
+        flagOp = FLAGS_AND;
+        flagResult = a;
     }
 
-    private void srl(Register dst) {
-        F.setCarry(dst.read() & 0x01);
-        int value = dst.read() >> 1;
-        value &= 0x7F;
-        F.setZero(value == 0 ? 1 : 0);
-        F.setOperation(0);
-        F.setHalfCarry(0);
-        dst.set(value);
+    void or(int value) {
+        a |= value;
+        flagOp = FLAGS_LOGIC;
+        flagResult = a;
     }
 
-    private void srl(RegisterPair dst) {
-        int value = mmu.readByte(dst.read());
-        F.setCarry(value & 0x01);
-        value = value >> 1;
-        value &= 0x7F;
-        F.setZero(value == 0 ? 1 : 0);
-        F.setOperation(0);
-        F.setHalfCarry(0);
-        mmu.writeByte(dst.read(), value);
+    void xor(int value) {
+        a ^= value;
+        flagOp = FLAGS_LOGIC;
+        flagResult = a;
     }
 
-    private void sra(Register dst) {
-        F.setCarry(dst.read() & 0x01);
-        int value = dst.read() >> 1;
-        int prev = dst.read() & 0x80;
-        value |= prev;
-        F.setZero(((value & 0xFF) == 0 ? 1 : 0));
-        dst.set(value);
+    /*
+     * Rotates and shifts take the operand value and return the result. All of them
+     * clear N and H and set Z and C from the result.
+     */
+    private int rlc(int value) {
+        int carry = value >> 7;
+        value = ((value << 1) | carry) & 0xFF;
+        setZeroCarry(value, carry);
+        return value;
     }
 
-    private void sra(RegisterPair dst) {
-        int value = mmu.readByte(dst.read());
-        F.setCarry(value & 0x01);
-        int prev = value & 0x80;
-        value = value >> 1;
-        value |= prev;
-        F.setZero(((value & 0xFF) == 0 ? 1 : 0));
-        mmu.writeByte(dst.read(), value);
+    private int rl(int value) {
+        int carry = value >> 7;
+        value = ((value << 1) | getCarry()) & 0xFF;
+        setZeroCarry(value, carry);
+        return value;
     }
 
-    private void bit(Register reg, int n) {
-        F.setHalfCarry(1);
-        F.setOperation(0);
-        F.setZero(((reg.read()>>n) & 0x01) == 0 ? 1 : 0);
+    private int sla(int value) {
+        int carry = value >> 7;
+        value = (value << 1) & 0xFE;
+        setZeroCarry(value, carry);
+        return value;
     }
 
-    private void bit(RegisterPair reg, int n) {
-        F.setHalfCarry(1);
-        F.setOperation(0);
-        F.setZero((((mmu.readByte(reg.read())>>n) & 0x01) == 0) ? 1 : 0);
+    private int swap(int value) {
+        value = ((value << 4) | (value >> 4)) & 0xFF;
+        setZeroCarry(value, 0);
+        return value;
     }
 
-    private void set(Register reg, int n) {
-        reg.set(reg.read() | (0x01 << n));
+    private int rrc(int value) {
+        int carry = value & 0x01;
+        value = ((value >> 1) | (carry << 7)) & 0xFF;
+        setZeroCarry(value, carry);
+        return value;
     }
 
-    private void set(RegisterPair reg, int n) {
-        mmu.writeByte(reg.read(), mmu.readByte(reg.read()) | (0x01 << n));
+    private int rr(int value) {
+        int carry = value & 0x01;
+        value = ((value >> 1) | (getCarry() << 7)) & 0xFF;
+        setZeroCarry(value, carry);
+        return value;
     }
 
-    private void res(Register reg, int n) {
-        reg.set(reg.read() & ~(0x1 << n));
+    private int srl(int value) {
+        int carry = value & 0x01;
+        value = (value >> 1) & 0x7F;
+        setZeroCarry(value, carry);
+        return value;
     }
 
-    private void res(RegisterPair reg, int n) {
-        mmu.writeByte(reg.read(), mmu.readByte(reg.read()) & ~(0x1 << n));
+    private int sra(int value) {
+        int carry = value & 0x01;
+        value = (value >> 1) | (value & 0x80);
+        setZeroCarry(value, carry);
+        return value;
     }
 
-    private Register getRegister(int reg) {
-        if (reg == 0) return B;
-        else if (reg == 1) return C;
-        else if (reg == 2) return D;
-        else if (reg == 3) return E;
-        else if (reg == 4) return H;
-        else if (reg == 5) return L;
-        else if (reg == 7) {
-            return A;
-        }
-        return null;
+    private void setZeroCarry(int value, int carry) {
+        flagOp = FLAGS_LOGIC;
+        flagResult = carry << 8 | value;
     }
 
-    private void pop() {
-        int value = mmu.readByte(sp.read());
-        sp.increment();
-        value |= mmu.readByte(sp.read()) << 8;
-        sp.increment();
-        pc.set(value-1);
+    private void bit(int value, int n) {
+        flagOp = FLAGS_AND;
+        flagResult = (flagResult & 0x100) | ((value >> n) & 0x01);
     }
 
-    private void pop(Register reg) {
-        reg.set(mmu.readByte(sp.read()));
-        sp.increment();
+    /** Applies a read-modify-write operation to the byte at (HL). */
+    private void modifyInd(IntUnaryOperator op) {
+        int addr = hl();
+        mmu.writeByte(addr, op.applyAsInt(mmu.readByte(addr)));
     }
 
-
-
-    private void push(RegisterPair reg_pair) {
-        sp.decrement();
-        mmu.writeByte(sp.read(), reg_pair.read() >> 8);
-        sp.decrement();
-        mmu.writeByte(sp.read(), reg_pair.read() & 0x00FF);
+    void ret() {
+        int value = mmu.readByte(sp);
+        sp = (sp + 1) & 0xFFFF;
+        value |= mmu.readByte(sp) << 8;
+        sp = (sp + 1) & 0xFFFF;
+        pc = value;
     }
 
-    private void push(SpecialRegister reg) {
-        sp.decrement();
-        mmu.writeByte(sp.read(), reg.read() >> 8);
-        sp.decrement();
-        mmu.writeByte(sp.read(), reg.read() & 0x00FF);
+    private int pop8() {
+        int value = mmu.readByte(sp);
+        sp = (sp + 1) & 0xFFFF;
+        return value;
     }
 
     private void push(int val) {
-        sp.decrement();
-        mmu.writeByte(sp.read(), val >> 8);
-        sp.decrement();
-        mmu.writeByte(sp.read(), val & 0x00FF);
-    }
-
-    private int halfCarryAdd8(int firstNum, int secondNum) {
-        return (((firstNum & 0x0F) + (secondNum & 0x0F))) > 0x0F ? 1 : 0;
-//        return (((first_num & 0x0F) + (second_num & 0x0F)) & 0x10) == 0x10 ? 1 : 0;
+        sp = (sp - 1) & 0xFFFF;
+        mmu.writeByte(sp, val >> 8);
+        sp = (sp - 1) & 0xFFFF;
+        mmu.writeByte(sp, val & 0x00FF);
     }
 
     private int halfCarryAdd16(int firstNum, int secondNum) {
         return ((firstNum & 0x0fff) + (secondNum & 0x0fff)) > 0x0fff ? 1: 0;
     }
 
-
-    private int halfCarrySub8(int firstNum, int secondNum) {
-        return (firstNum & 0x0F) - (secondNum & 0x0F) < 0 ? 1 : 0;
-    }
-
-    private int getSignedInt(int n) {
-        return (-256) | (n);
+    private boolean condition(int opCode) {
+        // cc field of JR/JP/CALL/RET: NZ, Z, NC, C
+        switch ((opCode >> 3) & 0x03) {
+            case 0:
+                return (flagResult & 0xFF) != 0;
+            case 1:
+                return (flagResult & 0xFF) == 0;
+            case 2:
+                return (flagResult & 0x100) == 0;
+            default:
+                return (flagResult & 0x100) != 0;
+        }
     }
 
-    private int executeOpCode(int opCode) {
-        // 0x [d1][d0]
-        String out =    "A:" + String.format("%02X", A.read()) +
-                        " F:" + String.format("%02X", F.read()) +
-                        " B:" + String.format("%02X", B.read()) +
-                        " C:" + String.format("%02X", C.read()) +
-                        " D:" + String.format("%02X", D.read()) +
-                        " E:" + String.format("%02X", E.read()) +
-                        " H:" + String.format("%02X", H.read()) +
-                        " L:" + String.format("%02X", L.read()) +
-                        " SP:" + String.format("%04X", sp.read()) +
-                        " PC:" + String.format("%04X", pc.read()) +
-                        " PCMEM:"+
-                            String.format("%02X",opCode) + "," +
-                            String.format("%02X", mmu.readByte(pc.read()+1))+ "," +
-                            String.format("%02X", mmu.readByte(pc.read()+2))+ "," +
-                            String.format("%02X", mmu.readByte(pc.read()+3));
-//        System.out.println(out);
-
-        boolean branchTaken = false;
-        int d1 = opCode >> 4;
-        int d0 = opCode & 0x0F;
-        if (opCode == 0x10) stop = true;
-        else if (opCode == 0xFB) interruptsEnabled = true;
-        else if (opCode == 0xF3) interruptsEnabled = false;
-        else if (opCode == 0x76) halt = true;
-        else if (opCode == 0xE2) {
-            loadDstInd(C, A);
-        } else if (opCode == 0xF2) {
-            loadSrcInd(A, C);
-        } else if (opCode == 0x3A) {
-            loadSrcInd(A, HL);
-            HL.decrement();
-        } else if (opCode == 0xF8) {
-            pc.increment();
-            int n = mmu.readByte(pc.read());
-            int val;
-            F.setCarry(((sp.read() & 0xFF) + (n & 0xFF)) > 0xFF ? 1 : 0);
-            F.setHalfCarry(((sp.read() & 0xF) + (n & 0xF)) > 0xF ? 1 : 0);
-            if (n > 128) n = getSignedInt(n);
-            val = n + sp.read();
-            F.setZero(0);
-            F.setOperation(0);
-            HL.set(val & 0xFFFF);
-        } else if (opCode == 0xE8) {
-            pc.increment();
-            int n = mmu.readByte(pc.read());
-            int val;
-            F.setCarry(((sp.read() & 0xFF) + (n & 0xFF)) > 0xFF ? 1 : 0);
-            F.setHalfCarry(((sp.read() & 0xF) + (n & 0xF)) > 0xF ? 1 : 0);
-            if (n > 128) n = getSignedInt(n);
-            val = n + sp.read();
-            F.setZero(0);
-            F.setOperation(0);
-            sp.set(val & 0xFFFF);
+    /**
+     * Decodes every base opcode once into a handler so that executeOpCode is a single
+     * indexed lookup. Handlers that take a conditional branch set branchTaken so the
+     * opCycleBranched timing is used.
+     */
+    private void buildInstructionTable() {
+        // opcodes that are not implemented behave as NOP
+        for (int opCode = 0; opCode < 0x100; opCode++) {
+            instructions[opCode] = () -> { };
         }
-        else if (opCode == 0xF9) {
-            sp.set(HL.read());
-        } else if (opCode == 0xCB) {
-            pc.increment();
-            return executeCB(mmu.readByte(pc.read()));
-        } else if (opCode == 0x22) {
-            loadDstInd(HL, A);
-            HL.increment();
-        } else if (opCode == 0x32) {
-            loadDstInd(HL, A);
-            HL.decrement();
-        } else if (opCode == 0xE6) {
-            pc.increment();
-            int n = mmu.readByte(pc.read());
-            and(A, n);
-        } else if (opCode == 0xEE) {
-            pc.increment();
-            int n = mmu.readByte(pc.read());
-            xor(A, n);
-        } else if (opCode == 0xF6) {
-            pc.increment();
-            int n = mmu.readByte(pc.read());
-            or(A, n);
-        } else if (opCode == 0xFE) {
-            pc.increment();
-            int n = mmu.readByte(pc.read());
-            cp(A, n);
-        } else if (opCode == 0xC6 || opCode == 0xCE) {
-            pc.increment();
-            int n = mmu.readByte(pc.read());
-            add(A, n, (opCode == 0xCE && F.getCarry() == 1) ? 1 : 0);
-        } else if (opCode == 0xD6 || opCode == 0xDE) {
-            pc.increment();
-            int n = mmu.readByte(pc.read());
-            sub(A, n, (opCode == 0xDE && F.getCarry() == 1) ? 1: 0);
-        } else if (d1 == 0x0B && d0 >= 0x08) {
-            if (d0 == 0x0E) {
-                cpInd(A, HL);
-            } else {
-                Register dst = getRegister(0b00000111 & opCode);
-                assert dst != null;
-                cp(A, dst);
-            }
-        } else if (opCode == 0xFA) {
-            int nn = mmu.readWord(pc.read()+1);
-            int val = mmu.readByte(nn) & 0xFF;
-            loadImm8(A, val);
-            pc.increment();
-            pc.increment();
-        } else if (opCode == 0xE9) {
-            pc.set(HL.read()-1);
-        } else if (opCode == 0xE0) {
-            loadDstInd(mmu.readByte(pc.read()+1) + 0xFF00, A);
-            pc.increment();
-        } else if (opCode == 0xEA) {
-            // load (nn), A
-            loadDstInd(mmu.readWord(pc.read()+1), A);
-            pc.increment();
-            pc.increment();
-        } else if (opCode == 0xF0) {
-            int addr = mmu.readByte(pc.read()+1) + 0xff00;
-            int val = mmu.readByte(addr);
-            A.set(val);
-            pc.increment();
-        } else if (d1 == 0x07 && d0 <= 0x07) {
-            Register reg = getRegister(d0);
-            assert reg != null;
-            loadDstInd(HL, reg);
-        } else if (opCode >= 0x40 && opCode < 0x80) {
-            // ld
-            int src = opCode & 0b00000111;
+
+        instructions[0x10] = () -> stop = true;
+        instructions[0xFB] = () -> interruptsEnabled = true;
+        instructions[0xF3] = () -> interruptsEnabled = false;
+        instructions[0x76] = () -> halt = true;
+
+        // LD r, r' / LD r, (HL) / LD (HL), r
+        for (int opCode = 0x40; opCode < 0x80; opCode++) {
+            if (opCode == 0x76) continue;
             int dst = (opCode & 0b00111000) >> 3;
-            Register srcReg = getRegister(opCode & 0b00000111);
-            Register dstReg = getRegister((opCode & 0b00111000) >> 3);
-            if (src == 0x06) {
-                assert dstReg != null;
-                loadSrcInd(dstReg, HL);
-            } else if (dst == 0x06) {
-                assert srcReg != null;
-                loadDstInd(HL, srcReg);
+            int src = opCode & 0b00000111;
+            if (src == 6) {
+                instructions[opCode] = () -> writeRegister(dst, mmu.readByte(hl()));
+            } else if (dst == 6) {
+                instructions[opCode] = () -> mmu.writeByte(hl(), readRegister(src));
             } else {
-                assert dstReg != null;
-                assert srcReg != null;
-                load(dstReg, srcReg);
+                instructions[opCode] = () -> writeRegister(dst, readRegister(src));
             }
+        }
 
-        } else if (opCode >= 0x80 && opCode < 0x90) {
-            // add & adc
-            if (d0 == 0x06 || d0 == 0x0E) {
-                addInd(A, HL, (d0 == 0x0E && F.getCarry() == 1) ? 1 : 0);
-            } else {
-                int dst = opCode & 0b00000111;
-                Register srcReg = getRegister(dst);
-                assert srcReg != null;
-                add(A, srcReg, (opCode > 0x87 && F.getCarry() == 1) ? 1 : 0);
-            }
-        } else if (opCode >= 0x90 && opCode < 0xA0) {
-            // sub & sbc
-            if (d0 == 0x06 || d0 == 0x0E) {
-                subInd(A, HL, (d0 == 0x0E && F.getCarry() == 1) ? 1 : 0);
-            } else {
-                int dst = opCode & 0b00000111;
-                Register dstReg = getRegister(dst);
-                assert dstReg != null;
-                sub(A, dstReg, (opCode > 0x97 && F.getCarry() == 1) ? 1 : 0);
-            }
-        } else if (opCode >= 0xA0 && opCode < 0xA8) {
-            // and
-            if (opCode == 0xA6) {
-                // mem
-                andInd(A, HL);
-            } else {
-                Register dstReg = getRegister(opCode & 0b00000111);
-                assert dstReg != null;
-                and(A, dstReg);
-            }
-        } else if (opCode >= 0xA8 && opCode < 0xB0) {
-            // xor
-            if (opCode == 0xAe) {
-                // mem
-                xorInd(A, HL);
-            } else {
-                Register dstReg = getRegister(opCode & 0b00000111);
-                assert dstReg != null;
-                xor(A, dstReg);
-            }
-        } else if (opCode >= 0xB0 && opCode < 0xB8) {
-            // or
-            if (opCode == 0xB6) {
-                // mem
-                orInd(A, HL);
-            } else {
-                Register dstReg = getRegister(opCode & 0b00000111);
-                assert dstReg != null;
-                or(A, dstReg);
-            }
-        } else if (opCode >= 0xB8 && opCode < 0xC0 ) {
-            // cp
-            Register dst = getRegister(opCode & 0x07);
-            if (dst == null) cpInd(A, HL);
-            else cp(A,dst);
-        } else if (opCode == 0xC0) {
-            // RET NZ
-            if (F.getZero() == 0) {
-                pop();
-                branchTaken = true;
-            }
-        } else if (opCode == 0xC8) {
-            // RET Z
-            if (F.getZero() != 0) {
-                pop();
-                branchTaken = true;
-            }
-        } else if (opCode == 0xD0) {
-            // RET NC
-            if (F.getCarry() == 0) {
-                pop();
-                branchTaken = true;
-            }
-        } else if (opCode == 0xD8) {
-            // RET C
-            if (F.getCarry() != 0) {
-                pop();
-                branchTaken = true;
-            }
-        } else if (opCode == 0xC9) {
-            // RET
-           pop();
-        } else if (opCode == 0xD9) {
-            // RETI
-            int low = mmu.readByte(sp.read());
-            sp.increment();
-            int hi = mmu.readByte(sp.read());
-            sp.increment();
-            int n = hi << 8;
-            n |= low;
-            pc.set(n-1);
-        } else if (d1 >= 0xC && (d0 == 0x0F || d0 == 0x07)) {
-            // RST
-            pc.increment();
-            push(pc);
-            if (opCode == 0xC7) {
-                pc.set(0x00);
-            } else if (opCode == 0xCF) {
-                pc.set(0x08);
-            } else if (opCode == 0xD7) {
-                pc.set(0x10);
-            } else if (opCode == 0xDF) {
-                pc.set(0x18);
-            } else if (opCode == 0xE7) {
-                pc.set(0x20);
-            } else if (opCode == 0xEF) {
-                pc.set(0x28);
-            } else if (opCode == 0xF7) {
-                pc.set(0x30);
-            } else if (opCode == 0xFF) {
-                pc.set(0x38);
-            }
-            pc.decrement();
-        } else if (d1 < 0x04 && ((d0 >= 3 && d0 < 6) || (d0 >= 0xB && d0 < 0xE))) {
-            // INC or DEC
-
-            if (d0 == 0x3) {
-                if (d1 == 0x0) inc(BC);
-                else if (d1 == 0x1) inc(DE);
-                else if (d1 == 0x2) inc(HL);
-                else if (d1 == 0x3) sp.increment();
-            } else if (d0 == 0xB) {
-                if (d1 == 0x0) dec(BC);
-                else if (d1 == 0x1) dec(DE);
-                else if (d1 == 0x2) dec(HL);
-                else if (d1 == 0x3) sp.decrement();
-            } else if (d0 == 0xD) {
-                if (d1 == 0x0) dec(C);
-                else if (d1 == 0x1) dec(E);
-                else if (d1 == 0x2) dec(L);
-                else if (d1 == 0x3) dec(A);
-            } else if (d0 == 0x5) {
-                if (d1 == 0x0) dec(B);
-                else if (d1 == 0x1) dec(D);
-                else if (d1 == 0x2) dec(H);
-                else if (d1 == 0x3) decInd(HL);
-
-            } else if (d0 == 0xC) {
-                if (d1 == 0x0) inc(C);
-                else if (d1 == 0x1) inc(E);
-                else if (d1 == 0x2) inc(L);
-                else if (d1 == 0x3) inc(A);
-            } else {
-                if (d1 == 0x0) inc(B);
-                else if (d1 == 0x1) inc(D);
-                else if (d1 == 0x2) inc(H);
-                else if (d1 == 0x3) incInd(HL);
-            }
-        } else if (d1 < 0x04 && (d0 == 0x06 || d0 == 0x0E)) {
-            // LD REG, n
-            int n = mmu.readByte(pc.read()+1);
-            Register dst = getRegister((opCode & 0b00111000) >> 3);
-            if (dst == null) {
-                mmu.writeByte(HL.read(), n);
-            } else {
-                loadImm8(dst, n);
-            }
-            pc.increment();
-        } else if (d1 < 0x04 && d0 == 0x01) {
-            // LD REG PAIR, nn
-            int nn = mmu.readWord(pc.read()+1);
-            if (d1 == 0x00) loadImm16(BC, nn);
-            else if (d1 == 0x01) loadImm16(DE, nn);
-            else if (d1 == 0x02) loadImm16(HL, nn);
-            else sp.set(nn);
-            pc.increment();
-            pc.increment();
-        } else if (d1 < 0x04 && d0 == 0x09) {
-            // ADD REG PAIR, REG PAIR
-            if (d1 == 0x00) {
-                add(HL, BC);
-            } else if (d1 == 0x01) {
-                add(HL, DE);
-            } else if (d1 == 0x02) {
-                add(HL, HL);
-            } else {
-                int hl = HL.read() & 0xFFFF;
-                add(HL, sp);
-                F.setHalfCarry(halfCarryAdd16(hl, sp.read() & 0xFFFF));
-            }
-        } else if (opCode == 0x02 || opCode == 0x12) {
-            // LD (BC) or (DE), A
-            if (opCode == 0x02) {
-                loadDstInd(BC, A);
-            } else {
-                loadDstInd(DE, A);
-            }
-        } else if (opCode == 0x0A || opCode == 0x1A) {
-            // LD A, (BC) or (DE)
-            if (opCode == 0x0A) {
-                loadSrcInd(A, BC);
-            } else {
-                loadSrcInd(A, DE);
-            }
-        } else if (d1 >= 0x0C && d0 == 0x01) {
-            // POP
-            if (d1 == 0x0C) {
-                pop(C);
-                pop(B);
-            } else if (d1 == 0x0D) {
-                pop(E);
-                pop(D);
-            } else if (d1 == 0x0E) {
-                pop(L);
-                pop(H);
-            } else {
-                // flag pop
-                F.set(mmu.readByte(sp.read()) & 0xF0);
-                sp.increment();
-                A.set(mmu.readByte(sp.read()));
-                sp.increment();
-            }
-        } else if ((d1 >= 0x0C && d1 < 0x0E) && (d0 == 0x02 || d0 == 0x0A)) {
-            // JP flag nn
-            pc.increment();
-            branchTaken = true;
-            int nn = mmu.readWord(pc.read());
-            if (opCode == 0xC2 && F.getZero() == 0) pc.set(nn-1);
-            else if (opCode == 0xCA && F.getZero() == 1) pc.set(nn-1);
-            else if (opCode == 0xD2 && F.getCarry() == 0) pc.set(nn-1);
-            else if (opCode == 0xDA && F.getCarry() == 1) pc.set(nn-1);
-            else {
-                pc.increment();
-                branchTaken = false;
-            }
-        } else if (opCode == 0xC3) {
-            // JP nn
-            int nn = mmu.readWord(pc.read()+1);
-            pc.set(nn-1);
-        } else if ((d1 >= 0x0C && d1 < 0x0E) && (d0 == 0x04 || d0 == 0x0C)) {
-            // CALL flag, nn
-            if ((opCode == 0xC4 && F.getZero() == 0) ||
-                (opCode == 0xCC && F.getZero() == 1) ||
-                (opCode == 0xD4 && F.getCarry() == 0) ||
-                (opCode == 0xDC && F.getCarry() == 1)) {
-                int nn = mmu.readWord(pc.read()+1);
-                push(pc.read()+3);
-                pc.set(nn-1);
-                branchTaken = true;
-            } else {
-                pc.increment();
-                pc.increment();
-            }
-        } else if (opCode == 0xCD) {
-            // CALL nn
-            int nn = mmu.readWord(pc.read()+1);
-            push(pc.read()+3);
-            pc.set(nn-1);
-        } else if (d1 >= 0x0C && d0 == 0x05) {
-            // PUSH
-            if (d1 == 0x0C) {
-                push(BC);
-            } else if (d1 == 0x0D) {
-                push(DE);
-            } else if (d1 == 0x0E) {
-                push(HL);
-            } else {
-                // flags
-                sp.decrement();
-                mmu.writeByte(sp.read(), A.read());
-                sp.decrement();
-                mmu.writeByte(sp.read(), F.read());
-            }
-        } else if (opCode == 0x08) {
-            // LD (nn) SP
-            int nn = mmu.readWord(pc.read()+1);
-            loadImm16(nn, sp);
-            pc.increment();
-            pc.increment();
-        } else if (opCode == 0x18) {
-            // JR n
-            int n = mmu.readByte(pc.read()+1);
-            if (n > 128) {
-                n = getSignedInt(n);
-            }
-            pc.set(pc.read() + n);
-            pc.increment();
-        } else if ((d1 >= 0x02 && d1 < 0x04) && (d0 == 0x00 || d0 == 0x08)) {
-            // JR flag nn
-            if ((opCode == 0x20 && F.getZero() == 0 )||
-                (opCode == 0x28 && F.getZero() == 1) ||
-                (opCode == 0x30 && F.getCarry() == 0) ||
-                (opCode == 0x38 && F.getCarry() == 1) ) {
-                int n = mmu.readByte(pc.read()+1);
-                if (n > 128) {
-                    n = getSignedInt(n);
-                }
-                pc.set(pc.read() + n);
-                branchTaken = true;
+        // ADD, ADC, SUB, SBC, AND, XOR, OR, CP with A
+        for (int opCode = 0x80; opCode < 0xC0; opCode++) {
+            int src = opCode & 0b00000111;
+            boolean ind = src == 6;
+            switch ((opCode >> 3) & 0x07) {
+                case 0:
+                    instructions[opCode] = ind
+                            ? () -> add(mmu.readByte(hl()), 0)
+                            : () -> add(readRegister(src), 0);
+                    break;
+                case 1:
+                    instructions[opCode] = ind
+                            ? () -> add(mmu.readByte(hl()), getCarry())
+                            : () -> add(readRegister(src), getCarry());
+                    break;
+                case 2:
+                    instructions[opCode] = ind
+                            ? () -> sub(mmu.readByte(hl()), 0)
+                            : () -> sub(readRegister(src), 0);
+                    break;
+                case 3:
+                    instructions[opCode] = ind
+                            ? () -> sub(mmu.readByte(hl()), getCarry())
+                            : () -> sub(readRegister(src), getCarry());
+                    break;
+                case 4:
+                    instructions[opCode] = ind ? () -> and(mmu.readByte(hl())) : () -> and(readRegister(src));
+                    break;
+                case 5:
+                    instructions[opCode] = ind ? () -> xor(mmu.readByte(hl())) : () -> xor(readRegister(src));
+                    break;
+                case 6:
+                    instructions[opCode] = ind ? () -> or(mmu.readByte(hl())) : () -> or(readRegister(src));
+                    break;
+                default:
+                    instructions[opCode] = ind ? () -> cp(mmu.readByte(hl()), 0) : () -> cp(readRegister(src), 0);
+                    break;
             }
-            pc.increment();
-        } else if (opCode == 0x2A) {
-            loadSrcInd(A, HL);
-            HL.increment();
-        } else if (opCode == 0x0F) {
-            // rrc a
-            rrc(A);
-            F.setOperation(0);
-            F.setZero(0);
-            F.setHalfCarry(0);
-        } else if (opCode == 0x1F) {
-            // rr a
-            rr(A);
-            F.setOperation(0);
-            F.setZero(0);
-            F.setHalfCarry(0);
-        } else if (opCode == 0x2F) {
-            // cpl
-            int val = ~A.read() & 0xFF;
-            A.set(val);
-            F.setHalfCarry(1);
-            F.setOperation(1);
-        } else if (opCode == 0x3F) {
-            // ccf
-            int val = F.getCarry() == 1 ? 0 : 1;
-            F.setCarry(val);
-            F.setOperation(0);
-            F.setHalfCarry(0);
-        } else if (opCode == 0x07) {
-            // rlc a
-            rlc(A);
-            F.setOperation(0);
-            F.setHalfCarry(0);
-            F.setZero(0);
-        } else if (opCode == 0x17) {
-            // rl a
-            rl(A);
-            F.setOperation(0);
-            F.setHalfCarry(0);
-            F.setZero(0);
-        } else if (opCode == 0x27) {
-            // daa
-//            System.out.println(F.getOperation());
-            if (F.getOperation() == 0) {
-                int a = A.read();
-//                System.out.println(Integer.toHexString(a & 0x0F));
-                if (F.getCarry() == 1 || a > 0x99) {
-                    A.set((A.read() + 0x60) & 0xFF);
-                    F.setCarry(1);
-                }
-                if (F.getHalfCarry() == 1 || (a & 0x0f) > 0x09) {
-                    A.set((A.read() + 0x06) & 0xFF);
-                }
+        }
+
+        // ALU A, n
+        instructions[0xC6] = () -> add(operand, 0);
+        instructions[0xCE] = () -> add(operand, getCarry());
+        instructions[0xD6] = () -> sub(operand, 0);
+        instructions[0xDE] = () -> sub(operand, getCarry());
+        instructions[0xE6] = () -> and(operand);
+        instructions[0xEE] = () -> xor(operand);
+        instructions[0xF6] = () -> or(operand);
+        instructions[0xFE] = () -> cp(operand, 0);
+
+        // INC r, DEC r, LD r, n
+        IntUnaryOperator inc = this::inc;
+        IntUnaryOperator dec = this::dec;
+        for (int r = 0; r < 8; r++) {
+            int reg = r;
+            if (reg == 6) {
+                instructions[0x04 | r << 3] = () -> modifyInd(inc);
+                instructions[0x05 | r << 3] = () -> modifyInd(dec);
+                instructions[0x06 | r << 3] = () -> mmu.writeByte(hl(), operand);
             } else {
-                if (F.getCarry() == 1) A.set((A.read()-0x60) & 0xFF);
-                if (F.getHalfCarry() == 1)  A.set((A.read()-0x06) & 0xFF);
+                instructions[0x04 | r << 3] = () -> writeRegister(reg, inc(readRegister(reg)));
+                instructions[0x05 | r << 3] = () -> writeRegister(reg, dec(readRegister(reg)));
+                instructions[0x06 | r << 3] = () -> writeRegister(reg, operand);
             }
-            F.setZero(A.read() == 0 ? 1 : 0);
-            F.setHalfCarry(0);
-        } else if (opCode == 0x37) {
-            // scf
-            F.setCarry(1);
-            F.setOperation(0);
-            F.setHalfCarry(0);
         }
-        return branchTaken ? opCycleBranched[opCode] : opCycles[opCode];
-    }
 
-    private int executeCB(int arg) {
-        int d1 = arg >> 4;
-        int d0 = arg & 0x0F;
-        Register reg = getRegister(d0 & 0x07);
-        if (d1 <= 0x03) {
-            F.setHalfCarry(0);
-            F.setOperation(0);
+        // LD rr, nn / INC rr / DEC rr / ADD HL, rr
+        for (int p = 0; p < 4; p++) {
+            int pair = p;
+            instructions[0x01 | p << 4] = () -> writePair(pair, operand);
+            instructions[0x03 | p << 4] = () -> writePair(pair, (readPair(pair) + 1) & 0xFFFF);
+            instructions[0x0B | p << 4] = () -> writePair(pair, (readPair(pair) - 1) & 0xFFFF);
+            instructions[0x09 | p << 4] = () -> addHL(readPair(pair));
         }
-        if (d1 == 0x00) {
-            //rotate (rlc)
-            if (d0 < 0x08) {
-                // left
-                if (d0 == 0x06) {
-                    // (HL)
-                    rlc(HL);
-                } else {
-                    assert reg != null;
-                    rlc(reg);
-                    // b-a
-                }
-            } else {
-                // right
-                if (d0 == 0x0E) {
-                    // (HL)
-                    rrc(HL);
-                } else {
-                    // b-a
-                    assert reg != null;
-                    rrc(reg);
+
+        // indirect loads through BC, DE, HL+/-, C and immediates
+        instructions[0x02] = () -> mmu.writeByte(bc(), a);
+        instructions[0x12] = () -> mmu.writeByte(de(), a);
+        instructions[0x0A] = () -> a = mmu.readByte(bc());
+        instructions[0x1A] = () -> a = mmu.readByte(de());
+        instructions[0x22] = () -> {
+            mmu.writeByte(hl(), a);
+            setHL(hl() + 1);
+        };
+        instructions[0x32] = () -> {
+            mmu.writeByte(hl(), a);
+            setHL(hl() - 1);
+        };
+        instructions[0x2A] = () -> {
+            a = mmu.readByte(hl());
+            setHL(hl() + 1);
+        };
+        instructions[0x3A] = () -> {
+            a = mmu.readByte(hl());
+            setHL(hl() - 1);
+        };
+        instructions[0xE2] = () -> mmu.writeByte(c + 0xFF00, a);
+        instructions[0xF2] = () -> a = mmu.readByte(c + 0xFF00);
+        instructions[0xE0] = () -> mmu.writeByte(operand + 0xFF00, a);
+        instructions[0xF0] = () -> a = mmu.readByte(operand + 0xFF00);
+        // load (nn), A
+        instructions[0xEA] = () -> mmu.writeByte(operand, a);
+        instructions[0xFA] = () -> a = mmu.readByte(operand) & 0xFF;
+        // LD (nn) SP
+        instructions[0x08] = () -> mmu.writeWord(operand, sp);
+
+        // stack pointer arithmetic
+        instructions[0xF8] = () -> setHL(addSpImm8());
+        instructions[0xE8] = () -> sp = addSpImm8();
+        instructions[0xF9] = () -> sp = hl();
+
+        // POP / PUSH
+        instructions[0xC1] = () -> {
+            c = pop8();
+            b = pop8();
+        };
+        instructions[0xD1] = () -> {
+            e = pop8();
+            d = pop8();
+        };
+        instructions[0xE1] = () -> {
+            l = pop8();
+            h = pop8();
+        };
+        instructions[0xF1] = () -> {
+            // flag pop
+            setFlags(pop8() & 0xF0);
+            a = pop8();
+        };
+        instructions[0xC5] = () -> push(bc());
+        instructions[0xD5] = () -> push(de());
+        instructions[0xE5] = () -> push(hl());
+        instructions[0xF5] = () -> push(a << 8 | getF());
+
+        // control transfers run with pc already past the instruction
+        // JR n / JR cc, n
+        instructions[0x18] = () -> pc = (pc + (byte) operand) & 0xFFFF;
+        for (int opCode = 0x20; opCode < 0x40; opCode += 0x08) {
+            int cc = opCode;
+            instructions[opCode] = () -> {
+                if (condition(cc)) {
+                    pc = (pc + (byte) operand) & 0xFFFF;
+                    branchTaken = true;
                 }
-            }
-        } else if (d1 == 0x01) {
-            //rotate (rl)
-            if (d0 < 0x08) {
-                // left
-                if (d0 == 0x06) {
-                    // (HL)
-                    rl(HL);
-                } else {
-                    // b-a
-                    assert reg != null;
-                    rl(reg);
+            };
+        }
+
+        // JP nn / JP cc, nn / JP HL
+        instructions[0xC3] = () -> pc = operand;
+        instructions[0xE9] = () -> pc = hl();
+        for (int opCode = 0xC2; opCode < 0xE0; opCode += 0x08) {
+            int cc = opCode;
+            instructions[opCode] = () -> {
+                if (condition(cc)) {
+                    pc = operand;
+                    branchTaken = true;
                 }
-            } else {
-                // right
-                if (d0 == 0x0E) {
-                    // (HL)
-                    rr(HL);
-                } else {
-                    // b-a
-                    assert reg != null;
-                    rr(reg);
+            };
+        }
+
+        // CALL nn / CALL cc, nn
+        instructions[0xCD] = () -> {
+            push(pc);
+            pc = operand;
+        };
+        for (int opCode = 0xC4; opCode < 0xE0; opCode += 0x08) {
+            int cc = opCode;
+            instructions[opCode] = () -> {
+                if (condition(cc)) {
+                    push(pc);
+                    pc = operand;
+                    branchTaken = true;
                 }
-            }
-        } else if (d1 == 0x02) {
-            //shift (sll)
-            if (d0 < 0x08) {
-                // left
-                if (d0 == 0x06) {
-                    // (HL)
-                    sla(HL);
-                } else {
-                    // b-a
-                    assert reg != null;
-                    sla(reg);
+            };
+        }
+
+        // RET / RET cc / RETI
+        instructions[0xC9] = this::ret;
+        for (int opCode = 0xC0; opCode < 0xE0; opCode += 0x08) {
+            int cc = opCode;
+            instructions[opCode] = () -> {
+                if (condition(cc)) {
+                    ret();
+                    branchTaken = true;
                 }
-            } else {
-                // right
-                if (d0 == 0x0E) {
-                    // (HL)
-                    sra(HL);
-                } else {
-                    // b-a
-                    assert reg != null;
-                    sra(reg);
+            };
+        }
+        instructions[0xD9] = this::ret;
+
+        // RST
+        for (int opCode = 0xC7; opCode < 0x100; opCode += 0x08) {
+            int vector = opCode & 0x38;
+            instructions[opCode] = () -> {
+                push(pc);
+                pc = vector;
+            };
+        }
+
+        // rotates on A and flag operations
+        // the A-register rotates always clear Z, so a non-zero low byte is recorded
+        instructions[0x07] = () -> {
+            // rlc a
+            a = rlc(a);
+            flagResult |= 0x01;
+        };
+        instructions[0x0F] = () -> {
+            // rrc a
+            a = rrc(a);
+            flagResult |= 0x01;
+        };
+        instructions[0x17] = () -> {
+            // rl a
+            a = rl(a);
+            flagResult |= 0x01;
+        };
+        instructions[0x1F] = () -> {
+            // rr a
+            a = rr(a);
+            flagResult |= 0x01;
+        };
+        instructions[0x27] = this::daa;
+        instructions[0x2F] = () -> {
+            // cpl
+            a = ~a & 0xFF;
+            setFlags(getF() | FLAG_OPERATION | FLAG_HALF_CARRY);
+        };
+        instructions[0x37] = () -> {
+            // scf
+            setFlags((getF() & FLAG_ZERO) | FLAG_CARRY);
+        };
+        instructions[0x3F] = () -> {
+            // ccf
+            setFlags((getF() & (FLAG_ZERO | FLAG_CARRY)) ^ FLAG_CARRY);
+        };
+    }
+
+    /**
+     * Decodes every CB-prefixed opcode once. Bits 0-2 select the operand (6 is (HL)),
+     * bits 3-5 select the rotate/shift or the bit number.
+     */
+    private void buildCBTable() {
+        for (int arg = 0; arg < 0x100; arg++) {
+            int reg = arg & 0x07;
+            int n = (arg & 0x38) >> 3;
+            IntUnaryOperator op;
+            if (arg < 0x40) {
+                switch (n) {
+                    case 0: op = this::rlc; break;
+                    case 1: op = this::rrc; break;
+                    case 2: op = this::rl; break;
+                    case 3: op = this::rr; break;
+                    case 4: op = this::sla; break;
+                    case 5: op = this::sra; break;
+                    case 6: op = this::swap; break;
+                    default: op = this::srl; break;
                 }
-            }
-        } else if (d1 == 0x03) {
-            //shift (sll)
-            if (d0 < 0x08) {
-                // left
-                if (d0 == 0x06) {
-                    // (HL)
-                    swap(HL);
+            } else if (arg < 0x80) {
+                if (reg == 6) {
+                    cbInstructions[arg] = () -> bit(mmu.readByte(hl()), n);
                 } else {
-                    // b-a
-                    assert reg != null;
-                    swap(reg);
+                    cbInstructions[arg] = () -> bit(readRegister(reg), n);
                 }
+                continue;
+            } else if (arg < 0xC0) {
+                op = value -> value & ~(0x1 << n);
             } else {
-                // right
-                if (d0 == 0x0E) {
-                    // (HL)
-                    srl(HL);
-                } else {
-                    // b-a
-                    assert reg != null;
-                    srl(reg);
-                }
+                op = value -> value | (0x01 << n);
             }
-        } else if (arg >= 0x40 && arg < 0x80) {
-            int b = (arg & 0x38) >> 3;
-            if (reg == null) {
-                bit(HL, b);
+            if (reg == 6) {
+                cbInstructions[arg] = () -> modifyInd(op);
             } else {
-                bit(reg, b);
+                cbInstructions[arg] = () -> writeRegister(reg, op.applyAsInt(readRegister(reg)));
             }
-        } else if (arg >= 0x80 && arg < 0xC0) {
-            int b = (arg & 0x38) >> 3;
-            if (reg == null) {
-                res(HL, b);
-            } else {
-                res(reg, b);
+        }
+    }
+
+    private int addSpImm8() {
+        int n = operand;
+        int flags = 0;
+        if (((sp & 0xFF) + (n & 0xFF)) > 0xFF) flags |= FLAG_CARRY;
+        if (((sp & 0xF) + (n & 0xF)) > 0xF) flags |= FLAG_HALF_CARRY;
+        setFlags(flags);
+        return ((byte) n + sp) & 0xFFFF;
+    }
+
+    private void daa() {
+        int flags = getF();
+        if ((flags & FLAG_OPERATION) == 0) {
+            int val = a;
+            if ((flags & FLAG_CARRY) != 0 || val > 0x99) {
+                a = (a + 0x60) & 0xFF;
+                flags |= FLAG_CARRY;
             }
-        } else if (arg >= 0xC0) {
-            int b = (arg & 0x38) >> 3;
-            if (reg == null) {
-                set(HL, b);
-            } else {
-                set(reg, b);
+            if ((flags & FLAG_HALF_CARRY) != 0 || (val & 0x0f) > 0x09) {
+                a = (a + 0x06) & 0xFF;
             }
+        } else {
+            if ((flags & FLAG_CARRY) != 0) a = (a-0x60) & 0xFF;
+            if ((flags & FLAG_HALF_CARRY) != 0)  a = (a-0x06) & 0xFF;
         }
+        flags &= FLAG_OPERATION | FLAG_CARRY;
+        if (a == 0) flags |= FLAG_ZERO;
+        setFlags(flags);
+    }
+
+    int executeOpCode(int opCode) {
+        if (opCode == 0xCB) {
+            return executeCB(operand);
+        }
+        branchTaken = false;
+        instructions[opCode].run();
+        return branchTaken ? opCycleBranched[opCode] : opCycles[opCode];
+    }
+
+    private int executeCB(int arg) {
+        cbInstructions[arg].run();
         return opCyclesCB[arg];
     }
 
@@ -1276,17 +810,22 @@ public class CPU {
         if (((fired >> bit) & 0x01) == 0) return false;
 
         mmu.unSetIFBit(bit);
-        pc.set(interruptVector);
+        pc = interruptVector;
         interruptsEnabled = false;
+        if (profiler != null) profiler.interrupt(interruptVector);
         return true;
     }
 
+    // an interrupt raised since the last instruction is taken after the next one
+    private boolean interruptPending() {
+        return interruptsEnabled && mmu.interruptRequested();
+    }
+
     private void handleInterrupts() {
-        if (interruptsEnabled) {
+        if (interruptsEnabled && mmu.interruptRequested()) {
             int interrupt = mmu.getIF() & mmu.getIE();
 //            System.out.println(Integer.toBinaryString(interrupt));
-            if (interrupt == 0) return;
-            push(pc.read());
+            push(pc);
 
             boolean handled;
 
@@ -1307,16 +846,154 @@ public class CPU {
         }
     }
 
+    /** Switches between the JIT tier and the plain interpreter, e.g. to verify one against the other. */
+    public void setJitEnabled(boolean enabled) {
+        compiler = enabled ? new BlockCompiler() : null;
+        blockCache.clearCompiled();
+    }
+
+    /** Enables tracing into the given ring buffer, or disables it when null. */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /** Enables profiling into the given profiler, or disables it when null. */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    private void trace(int address, int opCode) {
+        int pcMem = opCode
+                | mmu.readByte((address + 1) & 0xFFFF) << 8
+                | mmu.readByte((address + 2) & 0xFFFF) << 16
+                | mmu.readByte((address + 3) & 0xFFFF) << 24;
+        tracer.record(cycleCount, address, sp, a << 8 | getF(), bc(), de(), hl(), pcMem);
+    }
+
+    /**
+     * Fetches the instruction at pc into operand and moves pc past it. Consecutive
+     * instructions are replayed from the current decoded block until execution leaves it.
+     */
+    private int fetch() {
+        Block current = block;
+        int i = blockIndex;
+        if (current == null || i == current.length || current.addresses[i] != pc || !current.valid) {
+            current = blockCache.lookup(pc);
+            block = current;
+            i = 0;
+            if (current != null && compiler != null) {
+                compiler.profile(current);
+            } else if (current == null) {
+                int opCode = mmu.readByte(pc);
+                int length = opLengths[opCode];
+                operand = BlockCache.readOperand(mmu, pc, length);
+                pc = (pc + length) & 0xFFFF;
+                return opCode;
+            }
+        }
+        operand = current.operands[i];
+        pc = current.addresses[i + 1];
+        blockIndex = i + 1;
+        return current.opCodes[i];
+    }
+
+    /** Executes a single instruction, or one cycle while halted. */
     public int tick() {
-        if (halt) return 1;
-        int currInstr = mmu.readByte(pc.read());
+        if (halt) return haltedTick(1);
+        int address = pc;
+        int currInstr = fetch();
+        if (tracer != null) trace(address, currInstr);
         int cycles = executeOpCode(currInstr);
-        pc.increment();
-        if (mmu.readByte(0xff02) == 0x81) {
-            testOutput += (char)mmu.readByte(0xff01);
-//                System.out.println(testOutput);
-            mmu.writeByte(0xff02, 0x00);
+        if (profiler != null) profiler.instruction(address, currInstr, operand, cycles, pc);
+        return endInstruction(cycles);
+    }
+
+    /**
+     * Like tick, but runs a whole compiled block when one starts at pc and its worst-case
+     * cycles fit in budget, the number of cycles until another component's next event.
+     * Compiled blocks only write plain RAM and never touch IME, so running them in one step
+     * is indistinguishable from stepping them. While halted, or spinning in a polling loop,
+     * time jumps straight to budget. During OAM DMA every instruction is stepped, so memory
+     * accesses see the end of the transfer at the same cycle as in the interpreter.
+     */
+    public int tick(int budget) {
+        if (halt) return haltedTick(Math.max(budget, 1));
+        if (tracer == null && profiler == null && !mmu.dmaActive()) {
+            Block current = blockCache.cached(pc);
+            if (current != null && current.idleLoopCycles != 0 && current.idleLoopCycles <= budget
+                    && !interruptPending()) {
+                return endInstruction(idleLoop(current, budget));
+            }
+            if (compiler != null && current != null && current.compiled != null
+                    && current.compiledMaxCycles <= budget && !interruptPending()) {
+                // a block that leaves before its first instruction returns 0 and is interpreted
+                int cycles = current.compiled.run(this);
+                if (cycles != 0) return endInstruction(cycles);
+            }
         }
+        return tick();
+    }
+
+    /**
+     * Executes instructions until at least budget cycles have passed and returns the cycles
+     * actually taken, which overshoot budget by at most one instruction. Callers pass the
+     * cycles until the next event of another component, so nothing the CPU can observe
+     * changes inside the batch.
+     */
+    public int run(int budget) {
+        int cycles = 0;
+        while (cycles < budget) {
+            cycles += tick(budget - cycles);
+        }
+        return cycles;
+    }
+
+    /** Machine cycles executed since power-on. */
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    /**
+     * Runs one iteration of a polling loop. If it branches back, the polled register cannot
+     * change before the next event, so every further iteration that completes within budget
+     * would read the same value and leave the same state; they are skipped in one step.
+     */
+    private int idleLoop(Block loop, int budget) {
+        int cycles = 0;
+        for (int i = 0; i < loop.length; i++) {
+            operand = loop.operands[i];
+            pc = loop.addresses[i + 1];
+            cycles += executeOpCode(loop.opCodes[i]);
+        }
+        if (pc != loop.start()) return cycles;
+        int skipped = (budget / cycles - 1) * cycles;
+        idleCyclesSkipped += skipped;
+        return cycles + skipped;
+    }
+
+    /** Cycles that idle-loop detection fast-forwarded instead of stepping. */
+    public long getIdleCyclesSkipped() {
+        return idleCyclesSkipped;
+    }
+
+    /**
+     * Nothing executes in HALT until an enabled interrupt is requested, and requests only
+     * come from other components' events, so the whole wait up to the next one is a single
+     * step. On wake-up the interrupt is dispatched if IME is set, otherwise execution simply
+     * resumes after HALT.
+     */
+    private int haltedTick(int cycles) {
+        if (!mmu.interruptRequested()) {
+            cycleCount += cycles;
+            if (profiler != null) profiler.halted(cycles);
+            return cycles;
+        }
+        halt = false;
+        return endInstruction(1);
+    }
+
+    private int endInstruction(int cycles) {
+        cycleCount += cycles;
         handleInterrupts();
         return cycles;
     }
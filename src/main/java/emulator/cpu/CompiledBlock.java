@@ -0,0 +1,10 @@
+package emulator.cpu;
+
+/**
+ *  A ROM block translated to JVM bytecode by BlockCompiler;
+ *  run executes every instruction of the block, leaves pc at the next instruction
+ *  and returns the machine cycles taken;
+ */
+interface CompiledBlock {
+    int run(CPU cpu);
+}
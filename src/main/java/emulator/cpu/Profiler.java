@@ -0,0 +1,154 @@
+package emulator.cpu;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Opt-in execution profiler for the CPU;
+ *  Counts executions and cycles per opcode, per CB opcode and per PC in primitive arrays,
+ *  and follows CALL/RST/RET and interrupts on a shadow call stack so cycles can also be
+ *  attributed to call paths and written as collapsed stacks for flamegraph tools;
+ *  While a profiler is set the CPU steps every instruction through the interpreter.
+ */
+public class Profiler {
+    private static final int MAX_DEPTH = 64;
+
+    private final long[] opCounts = new long[0x100];
+    private final long[] opCycles = new long[0x100];
+    private final long[] cbCounts = new long[0x100];
+    private final long[] cbCycles = new long[0x100];
+    private final long[] pcCounts = new long[0x10000];
+    private final long[] pcCycles = new long[0x10000];
+    private long haltedCycles;
+
+    // call tree: node 0 is the root, each other node is a call target under its parent
+    private int[] nodeParent = new int[256];
+    private int[] nodeTarget = new int[256];
+    private long[] nodeCycles = new long[256];
+    private int nodeCount = 1;
+    private final Map<Long, Integer> children = new HashMap<>();
+    private int node;
+    private int depth;
+
+    void instruction(int address, int opCode, int operand, int cycles, int nextPc) {
+        opCounts[opCode]++;
+        opCycles[opCode] += cycles;
+        if (opCode == 0xCB) {
+            cbCounts[operand]++;
+            cbCycles[operand] += cycles;
+        }
+        pcCounts[address]++;
+        pcCycles[address] += cycles;
+        nodeCycles[node] += cycles;
+
+        int fallThrough = (address + CPU.opLengths[opCode]) & 0xFFFF;
+        switch (opCode) {
+            case 0xCD: case 0xC4: case 0xCC: case 0xD4: case 0xDC:
+                if (nextPc != fallThrough) call(nextPc);
+                break;
+            case 0xC7: case 0xCF: case 0xD7: case 0xDF: case 0xE7: case 0xEF: case 0xF7: case 0xFF:
+                call(nextPc);
+                break;
+            case 0xC9: case 0xD9:
+                ret();
+                break;
+            case 0xC0: case 0xC8: case 0xD0: case 0xD8:
+                if (nextPc != fallThrough) ret();
+                break;
+        }
+    }
+
+    void interrupt(int vector) {
+        call(vector);
+    }
+
+    void halted(int cycles) {
+        haltedCycles += cycles;
+    }
+
+    private void call(int target) {
+        // code that drops return addresses would grow the stack forever, so it is cut off
+        if (depth == MAX_DEPTH) return;
+        long key = (long) node << 16 | target;
+        Integer child = children.get(key);
+        if (child == null) {
+            child = newNode(node, target);
+            children.put(key, child);
+        }
+        node = child;
+        depth++;
+    }
+
+    private void ret() {
+        if (depth == 0) return;
+        node = nodeParent[node];
+        depth--;
+    }
+
+    private int newNode(int parent, int target) {
+        if (nodeCount == nodeParent.length) {
+            nodeParent = Arrays.copyOf(nodeParent, nodeCount * 2);
+            nodeTarget = Arrays.copyOf(nodeTarget, nodeCount * 2);
+            nodeCycles = Arrays.copyOf(nodeCycles, nodeCount * 2);
+        }
+        nodeParent[nodeCount] = parent;
+        nodeTarget[nodeCount] = target;
+        return nodeCount++;
+    }
+
+    /** Prints totals and the top entries of each table, ordered by cycles. */
+    public void writeReport(PrintStream out, int top) {
+        long instructions = 0, cycles = 0;
+        for (int i = 0; i < 0x100; i++) {
+            instructions += opCounts[i];
+            cycles += opCycles[i];
+        }
+        out.printf("instructions %d, cycles %d, halted cycles %d%n", instructions, cycles, haltedCycles);
+        writeTable(out, "opcode", "%02X", opCounts, opCycles, cycles, top);
+        writeTable(out, "CB opcode", "CB %02X", cbCounts, cbCycles, cycles, top);
+        writeTable(out, "PC", "%04X", pcCounts, pcCycles, cycles, top);
+    }
+
+    private static void writeTable(PrintStream out, String title, String format,
+                                   long[] counts, long[] cycles, long total, int top) {
+        Integer[] order = new Integer[counts.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (x, y) -> Long.compare(cycles[y], cycles[x]));
+        out.printf("%n%-10s %14s %14s %7s%n", title, "count", "cycles", "%");
+        for (int i = 0; i < Math.min(top, order.length) && counts[order[i]] != 0; i++) {
+            int key = order[i];
+            out.printf("%-10s %14d %14d %6.2f%%%n", String.format(format, key), counts[key], cycles[key],
+                    total == 0 ? 0.0 : 100.0 * cycles[key] / total);
+        }
+    }
+
+    /**
+     * Writes one line per call path, "entry;0150;2A3F 1234", with the cycles spent in the
+     * innermost function; flamegraph.pl and speedscope read this format directly.
+     */
+    public void writeCollapsedStacks(Path file) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+            StringBuilder line = new StringBuilder();
+            for (int n = 0; n < nodeCount; n++) {
+                if (nodeCycles[n] == 0) continue;
+                line.setLength(0);
+                appendPath(line, n);
+                out.append(line).append(' ').println(nodeCycles[n]);
+            }
+        }
+    }
+
+    private void appendPath(StringBuilder line, int n) {
+        if (n == 0) {
+            line.append("entry");
+            return;
+        }
+        appendPath(line, nodeParent[n]);
+        line.append(';').append(String.format("%04X", nodeTarget[n]));
+    }
+}
@@ -0,0 +1,100 @@
+package emulator.cpu;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Opt-in execution tracer for the CPU;
+ *  Writes one fixed-width binary record per instruction into a preallocated
+ *  off-heap ring buffer, so tracing allocates nothing while the emulator runs;
+ *  Dumped records are decoded offline into the gameboy-doctor text format.
+ *
+ *  Record layout (little endian, RECORD_SIZE bytes):
+ *  cycles (8), PC (2), SP (2), AF (2), BC (2), DE (2), HL (2), PCMEM (4)
+ */
+public class Tracer {
+    public static final int RECORD_SIZE = 24;
+
+    private final ByteBuffer records;
+    private final int capacity;
+    private long written;
+
+    /**
+     * @param capacity number of most recent instructions kept
+     */
+    public Tracer(int capacity) {
+        this.capacity = capacity;
+        records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Records the state before an instruction executes. pcMem holds the opcode in the
+     * low byte followed by the next three bytes of memory.
+     */
+    void record(long cycles, int pc, int sp, int af, int bc, int de, int hl, int pcMem) {
+        int offset = (int) (written % capacity) * RECORD_SIZE;
+        records.putLong(offset, cycles);
+        records.putShort(offset + 8, (short) pc);
+        records.putShort(offset + 10, (short) sp);
+        records.putShort(offset + 12, (short) af);
+        records.putShort(offset + 14, (short) bc);
+        records.putShort(offset + 16, (short) de);
+        records.putShort(offset + 18, (short) hl);
+        records.putInt(offset + 20, pcMem);
+        written++;
+    }
+
+    /** Total number of instructions recorded, including those overwritten in the ring. */
+    public long recordCount() {
+        return written;
+    }
+
+    /** Writes the records still held in the ring to a file, oldest first. */
+    public void dump(Path file) throws IOException {
+        int count = (int) Math.min(written, capacity);
+        int oldest = (int) ((written - count) % capacity);
+        ByteBuffer view = records.duplicate();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int first = Math.min(count, capacity - oldest);
+            view.limit((oldest + first) * RECORD_SIZE).position(oldest * RECORD_SIZE);
+            while (view.hasRemaining()) out.write(view);
+            view.limit((count - first) * RECORD_SIZE).position(0);
+            while (view.hasRemaining()) out.write(view);
+        }
+    }
+
+    /** Decodes binary records into one gameboy-doctor line per instruction. */
+    public static void decode(ByteBuffer in, PrintStream out) {
+        ByteBuffer buf = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        StringBuilder line = new StringBuilder(96);
+        for (int offset = buf.position(); offset + RECORD_SIZE <= buf.limit(); offset += RECORD_SIZE) {
+            int pc = buf.getShort(offset + 8) & 0xFFFF;
+            int sp = buf.getShort(offset + 10) & 0xFFFF;
+            int af = buf.getShort(offset + 12) & 0xFFFF;
+            int bc = buf.getShort(offset + 14) & 0xFFFF;
+            int de = buf.getShort(offset + 16) & 0xFFFF;
+            int hl = buf.getShort(offset + 18) & 0xFFFF;
+            int pcMem = buf.getInt(offset + 20);
+            line.setLength(0);
+            line.append(String.format("A:%02X F:%02X B:%02X C:%02X D:%02X E:%02X H:%02X L:%02X SP:%04X PC:%04X",
+                    af >> 8, af & 0xFF, bc >> 8, bc & 0xFF, de >> 8, de & 0xFF, hl >> 8, hl & 0xFF, sp, pc));
+            line.append(String.format(" PCMEM:%02X,%02X,%02X,%02X",
+                    pcMem & 0xFF, (pcMem >> 8) & 0xFF, (pcMem >> 16) & 0xFF, (pcMem >>> 24)));
+            out.println(line);
+        }
+    }
+
+    /** Usage: Tracer trace.bin - prints the decoded trace to stdout. */
+    public static void main(String[] args) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ)) {
+            decode(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()), System.out);
+        }
+    }
+}
@@ -1,29 +1,85 @@
 package emulator.main;
 
 import emulator.cpu.CPU;
+import emulator.cpu.Profiler;
 import emulator.memory.MMU;
 import emulator.ppu.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 public class GameBoy implements Runnable {
     public CPU cpu;
     public PPU ppu;
+    public MMU mmu;
+    public final Scheduler scheduler = new Scheduler();
+    /** Shows the frames in a window. */
     public GameBoy(String romPath) {
-        MMU mmu = new MMU(romPath);
-        ppu = new PPUHead(mmu);
+        this(romPath, new Screen());
+    }
+
+    public GameBoy(String romPath, FrameSink sink) {
+        this(romPath, sink, null);
+    }
+
+    /** Keeps battery-backed cartridge RAM in savePath, or only in memory if it is null. */
+    public GameBoy(String romPath, FrameSink sink, Path savePath) {
+        mmu = new MMU(romPath, savePath);
+        ppu = new PPU(mmu, sink);
         cpu = new CPU(mmu);
+        ppu.attach(scheduler);
         mmu.writeByte(0xFF40, 0x91);
         mmu.writeByte(0xFF00, 0xFF);
     }
 
     public void run() {
         while (!cpu.stop) {
-            int cycles = cpu.tick();
-            ppu.tick(cycles);
+            scheduler.advance(cpu.run(scheduler.cyclesUntilNextEvent()));
+        }
+    }
+
+    /**
+     * Runs for at least budget cycles, or until stopped, and returns the cycles taken.
+     * The CPU runs uninterrupted up to the next scheduled event and components are only synced there.
+     */
+    public long runCycles(long budget) {
+        long done = 0;
+        while (done < budget && !cpu.stop) {
+            int slice = (int) Math.min(scheduler.cyclesUntilNextEvent(), budget - done);
+            int cycles = cpu.run(slice);
+            scheduler.advance(cycles);
+            done += cycles;
+        }
+        return done;
+    }
+
+    /** Runs until n more frames have completed, or until stopped. */
+    public void runFrames(int n) {
+        long target = ppu.getFrameCount() + n;
+        while (ppu.getFrameCount() < target && !cpu.stop) {
+            scheduler.advance(cpu.run(scheduler.cyclesUntilNextEvent()));
         }
     }
 
     public static void main(String[] args) {
-        GameBoy gb = new GameBoy("/Users/utkarsh/IdeaProjects/GameBoyEmulator/Tetris.gb");
+        String rom = "/Users/utkarsh/IdeaProjects/GameBoyEmulator/Tetris.gb";
+        GameBoy gb = new GameBoy(rom, new Screen(), MMU.defaultSavePath(rom));
+        // -Demulator.profile=out.folded prints a profile at exit and writes collapsed stacks there
+        String profile = System.getProperty("emulator.profile");
+        if (profile != null) {
+            Profiler profiler = new Profiler();
+            gb.cpu.setProfiler(profiler);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                profiler.writeReport(System.err, 20);
+                try {
+                    profiler.writeCollapsedStacks(Paths.get(profile));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
         gb.run();
     }
 }
@@ -0,0 +1,116 @@
+package emulator.main;
+
+import java.util.Arrays;
+
+/**
+ *  System clock in machine cycles and the queue of component deadlines;
+ *  Components schedule an Event at an absolute cycle instead of being ticked every instruction,
+ *  the CPU runs uninterrupted up to the earliest deadline and advance then fires what is due;
+ *  The queue is a binary min-heap over parallel primitive arrays, so scheduling allocates nothing;
+ */
+public class Scheduler {
+    public interface Event {
+        /**
+         * @param deadline the cycle the event was scheduled for; now() may already be past it,
+         *                 so components schedule their next deadline relative to this one
+         */
+        void fire(long deadline);
+    }
+
+    private long now;
+    private long[] deadlines = new long[8];
+    private Event[] events = new Event[8];
+    private int size;
+
+    public long now() {
+        return now;
+    }
+
+    public void schedule(Event event, long deadline) {
+        if (size == deadlines.length) {
+            deadlines = Arrays.copyOf(deadlines, size * 2);
+            events = Arrays.copyOf(events, size * 2);
+        }
+        int i = size++;
+        // sift up
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (deadlines[parent] <= deadline) break;
+            deadlines[i] = deadlines[parent];
+            events[i] = events[parent];
+            i = parent;
+        }
+        deadlines[i] = deadline;
+        events[i] = event;
+    }
+
+    /** Removes every pending occurrence of event. */
+    public void cancel(Event event) {
+        // removing one by one could sift an unchecked entry into a checked slot,
+        // so the others are compacted and the heap is rebuilt once
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (events[i] == event) continue;
+            deadlines[kept] = deadlines[i];
+            events[kept] = events[i];
+            kept++;
+        }
+        Arrays.fill(events, kept, size, null);
+        size = kept;
+        for (int i = (size >> 1) - 1; i >= 0; i--) {
+            siftDown(i, deadlines[i], events[i]);
+        }
+    }
+
+    /** Cycles until the earliest deadline, at least 1. */
+    public int cyclesUntilNextEvent() {
+        if (size == 0) return Integer.MAX_VALUE;
+        return (int) Math.max(1, Math.min(deadlines[0] - now, Integer.MAX_VALUE));
+    }
+
+    /** Moves the clock forward and fires every event that is due, earliest first. */
+    public void advance(int cycles) {
+        now += cycles;
+        while (size > 0 && deadlines[0] <= now) {
+            long deadline = deadlines[0];
+            Event event = events[0];
+            removeAt(0);
+            event.fire(deadline);
+        }
+    }
+
+    private void removeAt(int index) {
+        size--;
+        long deadline = deadlines[size];
+        Event event = events[size];
+        events[size] = null;
+        if (index == size) return;
+        // the moved entry may also need to go up when removing from the middle
+        int i = siftDown(index, deadline, event);
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (deadlines[parent] <= deadline) break;
+            deadlines[i] = deadlines[parent];
+            events[i] = events[parent];
+            i = parent;
+        }
+        deadlines[i] = deadline;
+        events[i] = event;
+    }
+
+    /** Moves the entry down from slot i until its children are not earlier; returns where it landed. */
+    private int siftDown(int i, long deadline, Event event) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && deadlines[child + 1] < deadlines[child]) child++;
+            if (deadlines[child] >= deadline) break;
+            deadlines[i] = deadlines[child];
+            events[i] = events[child];
+            i = child;
+        }
+        deadlines[i] = deadline;
+        events[i] = event;
+        return i;
+    }
+}
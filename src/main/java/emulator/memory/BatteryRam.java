@@ -0,0 +1,128 @@
+package emulator.memory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ *  Battery-backed cartridge RAM living directly in a memory-mapped .sav file;
+ *  Writes mark their 4K page dirty and a background thread forces only dirty pages to disk,
+ *  once a second and at exit, so the emulation thread never copies or waits on the RAM;
+ *  Each page is its own mapping, which lets pages be forced one by one on any Java version;
+ */
+public class BatteryRam {
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    // kept open for the lock, which stops a second emulator sharing the mapped RAM
+    private final FileChannel channel;
+    private final MappedByteBuffer[] pages;
+    // written by the emulation thread, cleared by whichever thread flushes
+    private final AtomicIntegerArray dirty;
+
+    private BatteryRam(FileChannel channel, MappedByteBuffer[] pages) {
+        this.channel = channel;
+        this.pages = pages;
+        dirty = new AtomicIntegerArray(pages.length);
+    }
+
+    /**
+     * Maps size bytes of file, creating or growing it as needed; new bytes read as 0.
+     * Fails if another instance, in this process or another, has the file open.
+     */
+    public static BatteryRam open(Path file, int size) throws IOException {
+        int count = (size + PAGE_SIZE - 1) >> PAGE_SHIFT;
+        MappedByteBuffer[] pages = new MappedByteBuffer[count];
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!lock(channel)) throw new IOException(file + " is in use by another emulator");
+            for (int i = 0; i < count; i++) {
+                // mapping past the end grows the file
+                pages[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i << PAGE_SHIFT, PAGE_SIZE);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        BatteryRam ram = new BatteryRam(channel, pages);
+        Flusher.OPEN.add(ram);
+        return ram;
+    }
+
+    private static boolean lock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            // held by this process
+            return false;
+        }
+    }
+
+    int read(int offset) {
+        return pages[offset >> PAGE_SHIFT].get(offset & (PAGE_SIZE - 1)) & 0xFF;
+    }
+
+    void write(int offset, int value) {
+        int page = offset >> PAGE_SHIFT;
+        pages[page].put(offset & (PAGE_SIZE - 1), (byte) value);
+        if (dirty.get(page) == 0) dirty.lazySet(page, 1);
+    }
+
+    /** Forces the pages written since the last flush to disk; safe to call from any thread. */
+    public void flush() {
+        for (int i = 0; i < pages.length; i++) {
+            // cleared before forcing, so a write racing with the force marks the page again
+            if (dirty.getAndSet(i, 0) != 0) pages[i].force();
+        }
+    }
+
+    /** Flushes, stops the periodic flushing of this RAM and releases the file. */
+    public void close() {
+        Flusher.OPEN.remove(this);
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // background flushing of every open RAM, started with the first one
+    private static final class Flusher {
+        static final Set<BatteryRam> OPEN = ConcurrentHashMap.newKeySet();
+
+        static {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "battery-ram-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(Flusher::flushAll, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(Flusher::flushAll, "battery-ram-exit-flush"));
+        }
+
+        static void flushAll() {
+            for (BatteryRam ram : OPEN) {
+                try {
+                    ram.flush();
+                } catch (UncheckedIOException e) {
+                    // keep flushing the others; the page stays in the page cache
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package emulator.memory;
+
+/**
+ *  Notified when code the CPU may have decoded changes: a write lands in a RAM page that
+ *  was registered with MMU.watchCode, or the cartridge maps other ROM banks;
+ */
+public interface CodeWriteListener {
+    void codeWritten(int address);
+
+    /** The ROM banks now mapped at 0x0000-0x3FFF and 0x4000-0x7FFF. */
+    void romBanksMapped(int lowBank, int highBank);
+}
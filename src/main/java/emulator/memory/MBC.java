@@ -0,0 +1,92 @@
+package emulator.memory;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongSupplier;
+
+/**
+ *  Memory bank controller of a cartridge, picked from the header's cartridge type (0x147);
+ *  Writes to 0x0000-0x7FFF go to its registers and the MMU maps the banks it then selects,
+ *  so reads never go through the controller;
+ *  This base class is a plain 32K cartridge without a controller;
+ */
+class MBC {
+    private static final int CARTRIDGE_TYPE = 0x147;
+    private static final int RAM_SIZE = 0x149;
+    private static final int[] RAM_SIZES = {0, 0x800, 0x2000, 0x8000, 0x20000, 0x10000};
+
+    /** Value read from unmapped cartridge RAM. */
+    static final int OPEN_BUS = 0xFF;
+
+    protected final int romBanks;
+    protected final int ramBanks;
+    protected final boolean battery;
+    protected boolean ramEnabled;
+
+    MBC(int romBanks, int ramBanks, boolean battery) {
+        this.romBanks = romBanks;
+        this.ramBanks = ramBanks;
+        this.battery = battery;
+        // without a controller there is nothing to enable the RAM with
+        ramEnabled = true;
+    }
+
+    /** @param clock machine cycles since power-on, for controllers with a real-time clock */
+    static MBC create(ByteBuffer rom, LongSupplier clock) {
+        int type = rom.get(CARTRIDGE_TYPE) & 0xFF;
+        int romBanks = Math.max(2, rom.capacity() / MMU.ROM_BANK_SIZE);
+        int sizeCode = rom.get(RAM_SIZE) & 0xFF;
+        int ramSize = sizeCode < RAM_SIZES.length ? RAM_SIZES[sizeCode] : 0;
+        int ramBanks = (ramSize + MMU.RAM_BANK_SIZE - 1) / MMU.RAM_BANK_SIZE;
+        switch (type) {
+            case 0x01: case 0x02: case 0x03:
+                return new MBC1(romBanks, ramBanks, type == 0x03);
+            case 0x0F: case 0x10: case 0x11: case 0x12: case 0x13:
+                return new MBC3(romBanks, ramBanks, type == 0x0F || type == 0x10 || type == 0x13,
+                        type == 0x0F || type == 0x10, clock);
+            case 0x19: case 0x1A: case 0x1B: case 0x1C: case 0x1D: case 0x1E:
+                return new MBC5(romBanks, ramBanks, type == 0x1B || type == 0x1E);
+            default:
+                // ROM only, and controllers not emulated yet: keep the fixed 32K mapping
+                return new MBC(2, ramBanks, type == 0x09);
+        }
+    }
+
+    /** Handles a write to 0x0000-0x7FFF; returns true if the selected banks may have changed. */
+    boolean write(int address, int value) {
+        return false;
+    }
+
+    /** ROM bank mapped at 0x0000-0x3FFF. */
+    int lowRomBank() {
+        return 0;
+    }
+
+    /** ROM bank mapped at 0x4000-0x7FFF. */
+    int highRomBank() {
+        return 1;
+    }
+
+    /** RAM bank mapped at 0xA000-0xBFFF, or -1 when RAM is disabled, absent or replaced by the clock. */
+    int ramBank() {
+        return ramEnabled && ramBanks > 0 ? 0 : -1;
+    }
+
+    int readRegister(int address) {
+        return OPEN_BUS;
+    }
+
+    void writeRegister(int address, int value) {
+    }
+
+    int ramBanks() {
+        return ramBanks;
+    }
+
+    boolean hasBattery() {
+        return battery;
+    }
+
+    protected static boolean enablesRam(int value) {
+        return (value & 0x0F) == 0x0A;
+    }
+}
@@ -0,0 +1,54 @@
+package emulator.memory;
+
+/**
+ *  MBC1: up to 2MB ROM and 32K RAM;
+ *  A 5-bit and a 2-bit bank register; in mode 1 the 2-bit one also selects the RAM bank
+ *  and the bank mapped at 0x0000-0x3FFF;
+ */
+class MBC1 extends MBC {
+    private int bank1 = 1;
+    private int bank2;
+    private int mode;
+
+    MBC1(int romBanks, int ramBanks, boolean battery) {
+        super(romBanks, ramBanks, battery);
+        ramEnabled = false;
+    }
+
+    @Override
+    boolean write(int address, int value) {
+        switch (address >> 13) {
+            case 0:
+                ramEnabled = enablesRam(value);
+                break;
+            case 1:
+                // bank 0 is not selectable in the 5-bit register
+                bank1 = value & 0x1F;
+                if (bank1 == 0) bank1 = 1;
+                break;
+            case 2:
+                bank2 = value & 0x03;
+                break;
+            default:
+                mode = value & 0x01;
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    int lowRomBank() {
+        return mode == 1 ? (bank2 << 5) % romBanks : 0;
+    }
+
+    @Override
+    int highRomBank() {
+        return (bank2 << 5 | bank1) % romBanks;
+    }
+
+    @Override
+    int ramBank() {
+        if (!ramEnabled || ramBanks == 0) return -1;
+        return mode == 1 ? bank2 % ramBanks : 0;
+    }
+}
@@ -0,0 +1,140 @@
+package emulator.memory;
+
+import java.util.function.LongSupplier;
+
+/**
+ *  MBC3: up to 2MB ROM, 32K RAM and an optional real-time clock;
+ *  Selecting 0x08-0x0C in the RAM bank register maps a clock register at 0xA000-0xBFFF
+ *  instead of RAM; the clock counts emulated time and is read through a latched copy,
+ *  so it stands still while the emulator is paused or closed, like a console that is off;
+ */
+class MBC3 extends MBC {
+    private static final int CYCLES_PER_SECOND = 1 << 20;
+    private static final int SECONDS_PER_DAY = 86400;
+    private static final int DAY_LIMIT = 512;
+
+    private static final int RTC_S = 0x08;
+    private static final int RTC_M = 0x09;
+    private static final int RTC_H = 0x0A;
+    private static final int RTC_DL = 0x0B;
+    private static final int RTC_DH = 0x0C;
+
+    private final boolean hasClock;
+    // machine cycles since power-on
+    private final LongSupplier clock;
+    private int romBank = 1;
+    private int select;
+
+    // clock state: machine cycle at which the counter read 0, or the frozen counter while halted
+    private long base;
+    private long haltedCounter;
+    private boolean halted;
+    private boolean dayCarry;
+    private final int[] latched = new int[5];
+    private int lastLatchWrite = -1;
+
+    MBC3(int romBanks, int ramBanks, boolean battery, boolean hasClock, LongSupplier clock) {
+        super(romBanks, ramBanks, battery);
+        this.hasClock = hasClock;
+        this.clock = clock;
+        ramEnabled = false;
+        base = clock.getAsLong();
+    }
+
+    @Override
+    boolean write(int address, int value) {
+        switch (address >> 13) {
+            case 0:
+                ramEnabled = enablesRam(value);
+                break;
+            case 1:
+                romBank = value & 0x7F;
+                if (romBank == 0) romBank = 1;
+                break;
+            case 2:
+                select = value & 0x0F;
+                break;
+            default:
+                // writing 0 then 1 copies the running clock into the readable registers
+                if (lastLatchWrite == 0 && value == 1 && hasClock) latch();
+                lastLatchWrite = value;
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    int highRomBank() {
+        return romBank % romBanks;
+    }
+
+    @Override
+    int ramBank() {
+        if (!ramEnabled || select > 0x03 || ramBanks == 0) return -1;
+        return select % ramBanks;
+    }
+
+    @Override
+    int readRegister(int address) {
+        if (!ramEnabled || !hasClock || select < RTC_S || select > RTC_DH) return OPEN_BUS;
+        return latched[select - RTC_S];
+    }
+
+    @Override
+    void writeRegister(int address, int value) {
+        if (!ramEnabled || !hasClock || select < RTC_S || select > RTC_DH) return;
+        long counter = counter();
+        long seconds = counter % 60;
+        long minutes = counter / 60 % 60;
+        long hours = counter / 3600 % 24;
+        long days = counter / SECONDS_PER_DAY;
+        switch (select) {
+            case RTC_S:
+                seconds = value & 0x3F;
+                break;
+            case RTC_M:
+                minutes = value & 0x3F;
+                break;
+            case RTC_H:
+                hours = value & 0x1F;
+                break;
+            case RTC_DL:
+                days = (days & 0x100) | value;
+                break;
+            default:
+                days = (days & 0xFF) | (value & 0x01) << 8;
+                dayCarry = (value & 0x80) != 0;
+                boolean halt = (value & 0x40) != 0;
+                if (halt && !halted) haltedCounter = counter;
+                halted = halt;
+                break;
+        }
+        setCounter(days * SECONDS_PER_DAY + hours * 3600 + minutes * 60 + seconds);
+    }
+
+    private long counter() {
+        long counter = halted ? haltedCounter : (clock.getAsLong() - base) / CYCLES_PER_SECOND;
+        if (counter >= (long) DAY_LIMIT * SECONDS_PER_DAY) {
+            // the 9-bit day counter overflowed: it wraps and sets the carry until cleared
+            dayCarry = true;
+            counter %= (long) DAY_LIMIT * SECONDS_PER_DAY;
+            setCounter(counter);
+        }
+        return counter;
+    }
+
+    private void setCounter(long counter) {
+        if (halted) haltedCounter = counter;
+        else base = clock.getAsLong() - counter * CYCLES_PER_SECOND;
+    }
+
+    private void latch() {
+        long counter = counter();
+        long days = counter / SECONDS_PER_DAY;
+        latched[0] = (int) (counter % 60);
+        latched[1] = (int) (counter / 60 % 60);
+        latched[2] = (int) (counter / 3600 % 24);
+        latched[3] = (int) (days & 0xFF);
+        latched[4] = (int) (days >> 8 & 0x01) | (halted ? 0x40 : 0) | (dayCarry ? 0x80 : 0);
+    }
+}
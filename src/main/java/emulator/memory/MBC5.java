@@ -0,0 +1,46 @@
+package emulator.memory;
+
+/**
+ *  MBC5: up to 8MB ROM through a 9-bit bank number, and 128K RAM;
+ *  Unlike MBC1 and MBC3, bank 0 can be mapped at 0x4000-0x7FFF;
+ */
+class MBC5 extends MBC {
+    private int romBank = 1;
+    private int ramBank;
+
+    MBC5(int romBanks, int ramBanks, boolean battery) {
+        super(romBanks, ramBanks, battery);
+        ramEnabled = false;
+    }
+
+    @Override
+    boolean write(int address, int value) {
+        switch (address >> 12) {
+            case 0: case 1:
+                ramEnabled = enablesRam(value);
+                break;
+            case 2:
+                romBank = (romBank & 0x100) | value;
+                break;
+            case 3:
+                romBank = (romBank & 0xFF) | (value & 0x01) << 8;
+                break;
+            case 4: case 5:
+                ramBank = value & 0x0F;
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    int highRomBank() {
+        return romBank % romBanks;
+    }
+
+    @Override
+    int ramBank() {
+        return ramEnabled && ramBanks > 0 ? ramBank % ramBanks : -1;
+    }
+}
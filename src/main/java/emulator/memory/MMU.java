@@ -1,6 +1,10 @@
 package emulator.memory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.LongSupplier;
 
 
 /**
@@ -10,8 +14,8 @@ import java.io.*;
  *  Stores tile information for graphics;
  */
 public class MMU  {
-    private static final int ROM_BANK_SIZE = 0x4000;
-    private static final int RAM_BANK_SIZE = 0x2000;
+    static final int ROM_BANK_SIZE = 0x4000;
+    static final int RAM_BANK_SIZE = 0x2000;
     int[] boot = new int[0x100];
     private static final int[] boot_loader = {
             // prod emulator.memory.memory
@@ -39,91 +43,421 @@ public class MMU  {
             0xC3, 0xFD, 0x00, // JP 0x00FD
     };
 
-    private final int[] rom;
-    private final int[] vram;
-    private final int[] eram;
-    private final int[] wram;
-    private final int[] oam;
-    private final int[] io;
-    private final int[] hram;
-    private final int[] wrams;
-
-
+    // cartridge image shared through RomRegistry, its bank controller and the banks mapped now
+    private final RomRegistry.Rom cartridge;
+    private final ByteBuffer rom;
+    private final MBC mbc;
+    private int lowRomBank = -1;
+    private int highRomBank = -1;
+    private int ramBank = -1;
+    // cartridge RAM of battery-backed cartridges, in place of eram
+    private final BatteryRam battery;
+    private final byte[] vram;
+    private final byte[] eram;
+    private final byte[] wram;
+    private final byte[] oam;
+    private final byte[] io;
+    private final byte[] hram;
+    private final Serial serial = new Serial(this);
+
+    // IF (0xFF0F) and IE (0xFFFF), with whether an enabled interrupt is requested kept in step
+    private int interruptFlags;
+    private int interruptEnable;
+    private boolean interruptRequested;
+
+    // LCD registers, decoded when written so the PPU reads plain fields
+    private int stat;
+    private boolean displayEnabled;
+    private boolean windowTileMap;
+    private boolean windowEnabled;
+    private boolean bgWindowTileData;
+    private boolean bgTileMapDisplay;
+    private boolean spriteSize;
+    private boolean spritesEnabled;
+    private boolean bgEnabled;
+    private int scrollX;
+    private int scrollY;
+    private int windowX;
+    private int windowY;
+    private int bgPalette;
+    private int objPalette0;
+    private int objPalette1;
+
+    // OAM DMA: until the CPU clock reaches dmaEnd the CPU only reaches 0xFF00-0xFFFF. The page
+    // tables are emptied for that window instead of checking time on every access
+    private static final int DMA_LENGTH = 0xA0;
+    private static final int DMA_CYCLES = 160;
+    private LongSupplier clock;
+    private boolean dmaActive;
+    private long dmaEnd;
+
+    // RAM pages holding decoded code; writes to them are reported to codeListener
+    private final boolean[] codePages = new boolean[0x100];
+    private CodeWriteListener codeListener;
+    // tile data pages 0x80-0x97 take the slow write path while a listener is set; OAM always does
+    private VramWriteListener vramListener;
+
+    // page tables: for each 256-byte page, the backing array and the index of the page's
+    // first byte in it; a null entry sends the access to the unmapped handlers.
+    // ROM pages have no array, their readOffsets index the cartridge image instead.
+    // ramPages is the writable mapping, writePages the same minus watched code and tile pages
+    private final byte[][] readPages = new byte[0x100][];
+    private final int[] readOffsets = new int[0x100];
+    private final byte[][] ramPages = new byte[0x100][];
+    private final byte[][] writePages = new byte[0x100][];
+    private final int[] writeOffsets = new int[0x100];
+
+    /** Loads the ROM with cartridge RAM only in memory; use MMU(romPath, savePath) to keep it. */
     public MMU(String romPath) {
-        wram = new int[0x2000];
-        eram = new int[0x2000];
-        vram = new int[0x2000];
-        oam = new int[0xA0];
-        io = new int[0x80];
-        hram = new int[0x80];
-        wrams = new int[0x1E00];
+        this(romPath, null);
+    }
+
+    /** Loads the ROM, keeping battery-backed RAM in savePath, or only in memory if it is null. */
+    public MMU(String romPath, Path savePath) {
+        wram = new byte[0x2000];
+        vram = new byte[0x2000];
+        oam = new byte[0xA0];
+        io = new byte[0x80];
+        hram = new byte[0x80];
         System.arraycopy(boot_loader, 0, boot, 0, boot_loader.length);
         try {
-            rom = loadRom(romPath);
+            cartridge = RomRegistry.acquire(romPath);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        rom = cartridge.image();
+        // the CPU sets the clock after construction, until then no time has passed
+        mbc = MBC.create(rom, () -> clock == null ? 0 : clock.getAsLong());
+        int ramSize = mbc.ramBanks() * RAM_BANK_SIZE;
+        try {
+            battery = savePath != null && mbc.hasBattery() && ramSize > 0 ? BatteryRam.open(savePath, ramSize) : null;
         } catch (IOException e) {
+            cartridge.release();
             throw new RuntimeException(e);
         }
+        eram = battery == null ? new byte[ramSize] : null;
+        mapCartridge();
+        map(0x80, 0x20, vram, 0, true);
+        map(0xC0, 0x20, wram, 0, true);
+        // echo RAM mirrors C000-DDFF
+        map(0xE0, 0x1E, wram, 0, true);
     }
 
-    private int[] loadRom(String fileName) throws IOException {
-        byte[] cartridgeMemory = new byte[0x8000];
+    public void writeByte(int address, int value) {
+        int page = address >> 8;
+        byte[] memory = writePages[page];
+        if (memory != null) {
+            memory[writeOffsets[page] + (address & 0xFF)] = (byte) value;
+            return;
+        }
+        writeUnmapped(address, value);
+    }
 
-        try {
-            FileInputStream inputStream = new FileInputStream(fileName);
-            while (inputStream.read(cartridgeMemory) != -1);
-            inputStream.close();
-        } catch (IOException e) {
-            throw new IOException(e);
+    public int readByte(int address) {
+        int page = address >> 8;
+        byte[] memory = readPages[page];
+        if (memory != null) {
+            return memory[readOffsets[page] + (address & 0xFF)] & 0xFF;
         }
+        return readUnmapped(address);
+    }
 
-        int[] rom = new int[cartridgeMemory.length];
-        for (int i = 0; i < cartridgeMemory.length; i++) {
-            rom[i] = cartridgeMemory[i] & 0xFF;
+    // pages without a direct mapping: ROM, watched code and tile pages, disabled cartridge RAM, OAM and I/O
+    private void writeUnmapped(int address, int value) {
+        if (dmaActive && (address >> 8) != 0xFF) {
+            if (!dmaRunning()) writeByte(address, value);
+            return;
+        }
+        int page = address >> 8;
+        byte[] memory = ramPages[page];
+        if (memory != null) {
+            memory[writeOffsets[page] + (address & 0xFF)] = (byte) value;
+            if (page < 0xA0) vramListener.tileDataWritten(address);
+            else codeListener.codeWritten(page >= 0xE0 ? address - 0x2000 : address);
+        }
+        else if (page < 0x80) {
+            if (mbc.write(address, value)) mapCartridge();
+        }
+        else if (page >= 0xA0 && page < 0xC0) {
+            if (battery != null && ramBank >= 0) battery.write(ramBank * RAM_BANK_SIZE + address - 0xA000, value);
+            else mbc.writeRegister(address, value);
+        }
+        else if (page == 0xFE) {
+            if (address <= 0xFE9F) {
+                oam[address & 0xFF] = (byte) value;
+                if (vramListener != null) vramListener.oamWritten();
+            }
+        }
+        else if (page == 0xFF) {
+            writeIO(address, value);
         }
-        return rom;
     }
 
-    public void writeByte(int address, int value) {
-        switch (address & 0xf000) {
-            case 0x0000:
-            case 0x1000:
-            case 0x2000:
-            case 0x3000:
-            case 0x4000:
-            case 0x5000:
-            case 0x6000:
-            case 0x7000:
-            case 0x8000:
-            case 0x9000:
-                vram[address & 0x1FFF] = value;
+    private int readUnmapped(int address) {
+        if (dmaActive && (address >> 8) != 0xFF) {
+            return dmaRunning() ? 0xFF : readByte(address);
+        }
+        int page = address >> 8;
+        if (page < 0x80) {
+            return rom.get(readOffsets[page] + (address & 0xFF)) & 0xFF;
+        }
+        if (page >= 0xA0 && page < 0xC0) {
+            if (battery != null && ramBank >= 0) return battery.read(ramBank * RAM_BANK_SIZE + address - 0xA000);
+            return mbc.readRegister(address);
+        }
+        if (page == 0xFE) {
+            return address <= 0xFE9F ? oam[address & 0xFF] & 0xFF : 0xFF;
+        }
+        return readIO(address);
+    }
+
+    private void writeIO(int address, int value) {
+        if (address == Serial.SB || address == Serial.SC) {
+            serial.write(address, value);
+        }
+        else if (address == 0xFF0F) {
+            setIF(value);
+        }
+        else if (address == 0xFFFF) {
+            setIE(value);
+        }
+        else if (address >= 0xFF40 && address <= 0xFF4B) {
+            writeLcd(address, value);
+        }
+        else if (address <= 0xFF7F) {
+            io[address - 0xFF00] = (byte) value;
+        }
+        else {
+            hram[address - 0xFF80] = (byte) value;
+            if (codePages[0xFF]) codeListener.codeWritten(address);
+        }
+    }
+
+    private void writeLcd(int address, int value) {
+        switch (address) {
+            case 0xFF40:
+                displayEnabled = (value & 0x80) != 0;
+                windowTileMap = (value & 0x40) != 0;
+                windowEnabled = (value & 0x20) != 0;
+                bgWindowTileData = (value & 0x10) != 0;
+                bgTileMapDisplay = (value & 0x08) != 0;
+                spriteSize = (value & 0x04) != 0;
+                spritesEnabled = (value & 0x02) != 0;
+                bgEnabled = (value & 0x01) != 0;
+                break;
+            case 0xFF41:
+                // mode and coincidence bits are owned by the PPU
+                value = (value & 0x78) | (stat & 0x07);
+                stat = value;
+                break;
+            case 0xFF42:
+                scrollY = value;
+                break;
+            case 0xFF43:
+                scrollX = value;
+                break;
+            case 0xFF46:
+                startDma(value);
+                break;
+            case 0xFF47:
+                bgPalette = value;
+                break;
+            case 0xFF48:
+                objPalette0 = value;
                 break;
-            case 0xA000:
-            case 0xB000:
-                eram[address & 0x1FFF] = value;
+            case 0xFF49:
+                objPalette1 = value;
                 break;
-            case 0xC000:    // internal RAM
-            case 0xD000:
-                wram[address & 0x1FFF] = value;
-                if (address < 0xDDFF) {
-                    wrams[address & 0x1FFF] = value;
-                }
+            case 0xFF4A:
+                windowY = value;
+                break;
+            case 0xFF4B:
+                windowX = value;
                 break;
-            case 0xE000:
-                throw new IndexOutOfBoundsException();
-            case 0xF000:
-                if (address >= 0xFE00 && address <= 0xFE9F) oam[address & 0x00FF] = value;
-                else if (address <= 0xFEFF) {
-                    return;
-                }
-                else if (address <= 0xFF7F) {
-                    io[address - 0xFF00] = value;
-                }
-                else if (address <= 0xFFFF) hram[address - 0xFF80] = value;
-                else {
-                    throw new IndexOutOfBoundsException();
-                }
         }
+        io[address - 0xFF00] = (byte) value;
+    }
 
+    private int readIO(int address) {
+        if (address == Serial.SB || address == Serial.SC) {
+            return serial.read(address);
+        }
+        else if (address == 0xFF0F) {
+            return interruptFlags;
+        }
+        else if (address == 0xFFFF) {
+            return interruptEnable;
+        }
+        else if (address <= 0xFF7F) {
+            return io[address - 0xFF00] & 0xFF;
+        }
+        return hram[address - 0xFF80] & 0xFF;
+    }
+
+    /** Lets OAM DMA block the bus for its duration and the cartridge clock run, measured in CPU machine cycles. */
+    public void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /** Copies the 160 bytes at value * 0x100 into OAM at once, then blocks the bus for the transfer time. */
+    private void startDma(int value) {
+        if (dmaActive) endDma();
+        int source = value << 8;
+        int page = value;
+        byte[] memory = readPages[page];
+        if (memory != null) {
+            System.arraycopy(memory, readOffsets[page], oam, 0, DMA_LENGTH);
+        }
+        else if (page < 0x80) {
+            ByteBuffer image = rom.duplicate();
+            image.position(readOffsets[page]);
+            image.get(oam, 0, DMA_LENGTH);
+        }
+        else {
+            for (int i = 0; i < DMA_LENGTH; i++) {
+                oam[i] = (byte) readByte(source + i);
+            }
+        }
+        if (vramListener != null) vramListener.oamWritten();
+        if (clock == null) return;
+        dmaEnd = clock.getAsLong() + DMA_CYCLES;
+        dmaActive = true;
+        for (int p = 0; p < 0xFF; p++) {
+            readPages[p] = null;
+            writePages[p] = null;
+        }
+    }
+
+    /**
+     * Whether OAM DMA still holds the bus. Its end is timed on the CPU clock, so the CPU steps
+     * instructions one by one meanwhile rather than running blocks that add their cycles at the end.
+     */
+    public boolean dmaActive() {
+        return dmaActive && dmaRunning();
+    }
+
+    /** Whether the transfer still holds the bus; ends it once its time is up. */
+    private boolean dmaRunning() {
+        if (clock.getAsLong() < dmaEnd) return true;
+        endDma();
+        return false;
+    }
+
+    // every array-backed page is writable, so ramPages holds the mapping to restore
+    private void endDma() {
+        dmaActive = false;
+        for (int p = 0; p < 0xFF; p++) {
+            readPages[p] = ramPages[p];
+            writePages[p] = watched(p) ? null : ramPages[p];
+        }
+    }
+
+    /**
+     * Points the ROM and cartridge RAM pages at the banks the controller selects. Only the
+     * page tables change, so a bank switch costs a few dozen stores and reads stay untouched.
+     */
+    private void mapCartridge() {
+        int low = mbc.lowRomBank();
+        int high = mbc.highRomBank();
+        if (low != lowRomBank || high != highRomBank) {
+            lowRomBank = low;
+            highRomBank = high;
+            for (int page = 0; page < 0x40; page++) {
+                readOffsets[page] = low * ROM_BANK_SIZE + (page << 8);
+                readOffsets[0x40 + page] = high * ROM_BANK_SIZE + (page << 8);
+            }
+            if (codeListener != null) codeListener.romBanksMapped(low, high);
+        }
+        int ram = mbc.ramBank();
+        if (ram != ramBank) {
+            ramBank = ram;
+            // battery RAM is reached through the unmapped handlers so writes can mark pages dirty
+            if (ram < 0 || battery != null) map(0xA0, 0x20, null, 0, false);
+            else map(0xA0, 0x20, eram, ram * RAM_BANK_SIZE, true);
+        }
+    }
+
+    /** Maps count pages from firstPage onwards to memory starting at offset, or unmaps them if memory is null. */
+    private void map(int firstPage, int count, byte[] memory, int offset, boolean writable) {
+        for (int i = 0; i < count; i++) {
+            int page = firstPage + i;
+            readOffsets[page] = offset + (i << 8);
+            ramPages[page] = writable ? memory : null;
+            writeOffsets[page] = offset + (i << 8);
+            // while DMA blocks the bus the tables stay empty and endDma maps the pages
+            if (dmaActive) continue;
+            readPages[page] = memory;
+            writePages[page] = writable && !watched(page) ? memory : null;
+        }
+    }
+
+    /** Releases this instance's reference to the shared cartridge image and flushes battery RAM. */
+    public void close() {
+        cartridge.release();
+        if (battery != null) battery.close();
+    }
+
+    /** The usual place for a ROM's battery-backed RAM: a .sav file next to it. */
+    public static Path defaultSavePath(String romPath) {
+        String name = Paths.get(romPath).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return Paths.get(romPath).resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".sav");
+    }
+
+    public Serial getSerial() {
+        return serial;
+    }
+
+    public void setCodeWriteListener(CodeWriteListener listener) {
+        codeListener = listener;
+    }
+
+    /** Reports writes to VRAM tile data and OAM to listener; tile data writes then take the slow path. */
+    public void setVramWriteListener(VramWriteListener listener) {
+        vramListener = listener;
+        for (int page = 0x80; page < 0x98; page++) {
+            if (!dmaActive) writePages[page] = watched(page) ? null : ramPages[page];
+        }
+    }
+
+    // whether writes to the page must be reported to a listener
+    private boolean watched(int page) {
+        return codePages[page] || vramListener != null && page >= 0x80 && page < 0x98;
+    }
+
+    /** Marks or clears a 256-byte page as holding decoded code; writes to it then take the slow path. */
+    public void watchCode(int page, boolean watched) {
+        codePages[page] = watched;
+        if (page < 0xFF && !dmaActive) {
+            writePages[page] = watched(page) ? null : ramPages[page];
+        }
+        // writes through echo RAM reach the same code
+        if (page >= 0xC0 && page < 0xDE) {
+            watchCode(page + 0x20, watched);
+        }
+    }
+
+    /**
+     * Reads code for the block decoder. OAM DMA does not block it: decoded ROM blocks are kept
+     * for good, so they must hold the real code rather than the 0xFF data reads get meanwhile.
+     */
+    public int readCode(int address) {
+        if (!dmaActive) return readByte(address);
+        int page = address >> 8;
+        byte[] memory = ramPages[page];
+        if (memory != null) return memory[readOffsets[page] + (address & 0xFF)] & 0xFF;
+        if (page < 0x80) return rom.get(readOffsets[page] + (address & 0xFF)) & 0xFF;
+        return readByte(address);
+    }
+
+    /** VRAM as the PPU sees it: not blocked by OAM DMA and without page-table dispatch. */
+    public int readVram(int address) {
+        return vram[address & 0x1FFF] & 0xFF;
+    }
+
+    /** OAM as the PPU sees it, like readVram. */
+    public int readOam(int address) {
+        return oam[address & 0xFF] & 0xFF;
     }
 
     public int readWord(int address) {
@@ -136,157 +470,129 @@ public class MMU  {
         writeByte(address + 1, value >> 8);
     }
 
-    public int readByte(int address) {
-        switch (address & 0xf000) {
-            case 0x0000:
-            case 0x0100:
-            case 0x2000:
-            case 0x3000:
-            case 0x4000:
-            case 0x5000:
-            case 0x6000:
-            case 0x7000:
-                return rom[address];
-            case 0x8000:
-            case 0x9000:
-                return vram[address & 0x1FFF];
-            case 0xA000:
-            case 0xB000:
-                return eram[address & 0x1FFF];
-            case 0xC000:    // internal RAM
-            case 0xD000:
-                return wram[address & 0x1FFF];
-            case 0xE000:
-            case 0xF000:
-                if (address <= 0xFDFF) {
-                    return wrams[address & 0x1FFF];
-                }
-                else if (address <= 0xFE9F) {
-                    return oam[address & 0x00FF];
-                }
-                else if (address <= 0xFEFF) {
-                    return 0xFF;
-                }
-                else if (address <= 0xFF7F) {
-                    return io[address - 0xFF00];
-                }
-                else if (address <= 0xFFFF) {
-                    return hram[address - 0xFF80];
-                }
-                else throw new IndexOutOfBoundsException();
-
-        }
-        return 0;
-    }
-
     public int getIF() {
-        return readByte(0xFF0F);
+        return interruptFlags;
     }
 
     public int getIE() {
-        return readByte(0xFFFF);
+        return interruptEnable;
+    }
+
+    /** True when some interrupt is both requested in IF and enabled in IE. */
+    public boolean interruptRequested() {
+        return interruptRequested;
+    }
+
+    private void setIF(int value) {
+        interruptFlags = value;
+        interruptRequested = (interruptFlags & interruptEnable & 0x1F) != 0;
+    }
+
+    private void setIE(int value) {
+        interruptEnable = value;
+        interruptRequested = (interruptFlags & interruptEnable & 0x1F) != 0;
     }
 
     public void unSetIFBit(int bit) {
-        int iF = getIF();
-        iF = iF & ~(1 << bit);
-        writeByte(0xFF0F, iF);
+        setIF(interruptFlags & ~(1 << bit));
     }
 
     public void unSetIEBit(int bit) {
-        int iE = getIE();
-        iE = iE & ~(1 << bit);
-        writeByte(0xFFFF, iE);
+        setIE(interruptEnable & ~(1 << bit));
     }
 
     public void setIFBit(int bit) {
-        int iF = getIF();
-        iF = iF | (1 << bit);
-        writeByte(0xFF0F, iF);
+        setIF(interruptFlags | (1 << bit));
     }
 
     public void setIEBit(int bit) {
-        int iE = getIE();
-        iE = iE | (1 << bit);
-        writeByte(0xFFFF, iE);
+        setIE(interruptEnable | (1 << bit));
     }
 
     public int getStat() {
-        return readByte(0xFF41);
+        return stat;
     }
 
     public int getStatBit(int bit) {
-        return 0;
+        return (stat >> bit) & 0x01;
     }
 
     public void setStatBit(int bit) {
-        int stat = getStat();
-        stat = stat | (1 << bit);
-        writeByte(0xFF41, stat);
+        stat |= 1 << bit;
+        io[0x41] = (byte) stat;
     }
 
     public void unSetStatBit(int bit) {
-        int stat = getStat();
-        stat = stat & ~(1 << bit);
-        writeByte(0xFF41, stat);
+        stat &= ~(1 << bit);
+        io[0x41] = (byte) stat;
     }
 
     public int getLYComp() {
-        return readByte(0xFF45);
+        return io[0x45] & 0xFF;
     }
 
     public void setLYComp(int value) {
-        writeByte(0xFF45, value);
+        io[0x45] = (byte) value;
     }
 
     public int getLY() {
-        return readByte(0xFF44);
+        return io[0x44] & 0xFF;
     }
 
     public void setLY(int value) {
-        writeByte(0xFF44, value);
+        io[0x44] = (byte) value;
     }
 
     public boolean displayEnabled() {
-        return (readByte(0xFF40) >> 7) == 1;
+        return displayEnabled;
     }
     public boolean windowTileMap() {
-        return ((readByte(0xFF40) >> 6) & 0x01) == 1;
+        return windowTileMap;
     }
     public boolean windowEnabled() {
-        return ((readByte(0xFF40) >> 5) & 0x01) == 1;
+        return windowEnabled;
     }
     public boolean bgWindowTileData() {
-        return ((readByte(0xFF40) >> 4) & 0x01) == 1;
+        return bgWindowTileData;
     }
     public boolean bgTileMapDisplay() {
-        return ((readByte(0xFF40) >> 3) & 0x01) == 1;
+        return bgTileMapDisplay;
     }
     public boolean spriteSize() {
-        return ((readByte(0xFF40) >> 2) & 0x01) == 1;
+        return spriteSize;
     }
     public boolean spritesEnabled() {
-        return ((readByte(0xFF40) >> 1) & 0x01) == 1;
+        return spritesEnabled;
     }
     public boolean bgEnabled() {
-//        System.out.println(readByte(0xFF40 & 0x01));
-//        return readByte(0xFF40 & 0x01) == 1;
-        return true;
+        return bgEnabled;
     }
 
     public int getScrollY() {
-        return readByte(0xFF42);
+        return scrollY;
     }
 
     public int getScrollX() {
-        return readByte(0xFF43);
+        return scrollX;
     }
 
     public int getWindowX() {
-        return readByte(0xFF4A);
+        return windowX;
     }
 
     public int getWindowY() {
-        return readByte(0xFF4B);
+        return windowY;
+    }
+
+    public int getBgPalette() {
+        return bgPalette;
+    }
+
+    public int getObjPalette0() {
+        return objPalette0;
+    }
+
+    public int getObjPalette1() {
+        return objPalette1;
     }
 }
@@ -0,0 +1,113 @@
+package emulator.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ *  Process-wide cache of cartridge images;
+ *  ROM files are mapped read-only with FileChannel.map and shared by every MMU that loads
+ *  the same path, or a different path with the same contents;
+ *  Images are reference counted and dropped from the cache when the last MMU releases them;
+ */
+public final class RomRegistry {
+    // smallest image handed out, so the fixed 0x0000-0x7FFF mapping never reads past the end
+    private static final int MIN_SIZE = 0x8000;
+
+    private static final Map<Path, Rom> byPath = new HashMap<>();
+    // last known modification time of each path, to notice a ROM being rebuilt in place
+    private static final Map<Path, Long> pathModified = new HashMap<>();
+    private static final Map<Long, Rom> byContent = new HashMap<>();
+
+    private RomRegistry() {
+    }
+
+    /** A shared cartridge image; read it with absolute gets only. */
+    public static final class Rom {
+        private final ByteBuffer image;
+        private final long contentKey;
+        private int references;
+
+        private Rom(ByteBuffer image, long contentKey) {
+            this.image = image;
+            this.contentKey = contentKey;
+        }
+
+        public ByteBuffer image() {
+            return image;
+        }
+
+        public void release() {
+            RomRegistry.release(this);
+        }
+    }
+
+    /** Returns the shared image of the ROM at path, mapping it on first use. */
+    public static synchronized Rom acquire(String path) throws IOException {
+        Path file = Paths.get(path).toRealPath();
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        Rom rom = byPath.get(file);
+        if (rom == null || pathModified.get(file) != lastModified) {
+            rom = load(file, lastModified);
+        }
+        rom.references++;
+        return rom;
+    }
+
+    private static Rom load(Path file, long lastModified) throws IOException {
+        ByteBuffer image = map(file);
+        long contentKey = contentKey(image);
+        Rom rom = byContent.get(contentKey);
+        if (rom == null || !rom.image.equals(image)) {
+            rom = new Rom(image, contentKey);
+            byContent.put(contentKey, rom);
+        }
+        byPath.put(file, rom);
+        pathModified.put(file, lastModified);
+        return rom;
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MIN_SIZE) {
+                // the mapping stays valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asReadOnlyBuffer();
+            }
+            // too small to map as a full cartridge: pad a heap copy instead
+            ByteBuffer padded = ByteBuffer.allocate(MIN_SIZE);
+            while (padded.position() < size && channel.read(padded) != -1);
+            return padded.clear().asReadOnlyBuffer();
+        }
+    }
+
+    // CRC32 of the contents with the size in the upper bits; equal keys are confirmed by comparing images
+    private static long contentKey(ByteBuffer image) {
+        CRC32 crc = new CRC32();
+        crc.update(image.duplicate());
+        return (long) image.capacity() << 32 | crc.getValue();
+    }
+
+    private static synchronized void release(Rom rom) {
+        if (rom.references == 0) throw new IllegalStateException("ROM released more often than acquired");
+        if (--rom.references > 0) return;
+        byPath.entrySet().removeIf(entry -> {
+            if (entry.getValue() != rom) return false;
+            pathModified.remove(entry.getKey());
+            return true;
+        });
+        byContent.remove(rom.contentKey, rom);
+    }
+
+    /** Number of distinct images currently cached. */
+    public static synchronized int size() {
+        return byContent.size();
+    }
+}
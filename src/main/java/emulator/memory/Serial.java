@@ -0,0 +1,49 @@
+package emulator.memory;
+
+/**
+ *  Serial port registers SB (0xFF01) and SC (0xFF02);
+ *  There is no link partner: a transfer started with the internal clock completes at once,
+ *  hands the byte in SB to the listener, shifts in 0xFF from the disconnected line, clears
+ *  the start bit in SC and requests the serial interrupt;
+ */
+public class Serial {
+    public static final int SB = 0xFF01;
+    public static final int SC = 0xFF02;
+
+    private static final int TRANSFER_START = 0x80;
+    private static final int INTERNAL_CLOCK = 0x01;
+    private static final int SERIAL_INTERRUPT = 3;
+    private static final int DISCONNECTED = 0xFF;
+
+    private final MMU mmu;
+
+    private int data;
+    private int control;
+    private SerialListener listener;
+
+    Serial(MMU mmu) {
+        this.mmu = mmu;
+    }
+
+    public void setListener(SerialListener listener) {
+        this.listener = listener;
+    }
+
+    int read(int address) {
+        return address == SB ? data : control;
+    }
+
+    void write(int address, int value) {
+        if (address == SB) {
+            data = value;
+            return;
+        }
+        control = value;
+        if ((value & (TRANSFER_START | INTERNAL_CLOCK)) == (TRANSFER_START | INTERNAL_CLOCK)) {
+            if (listener != null) listener.byteSent(data);
+            data = DISCONNECTED;
+            control &= ~TRANSFER_START;
+            mmu.setIFBit(SERIAL_INTERRUPT);
+        }
+    }
+}
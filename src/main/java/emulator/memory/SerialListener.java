@@ -0,0 +1,9 @@
+package emulator.memory;
+
+/**
+ *  Receives every byte the game sends over the serial port;
+ *  Called on the emulator thread as the transfer starts;
+ */
+public interface SerialListener {
+    void byteSent(int value);
+}
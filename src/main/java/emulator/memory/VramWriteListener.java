@@ -0,0 +1,11 @@
+package emulator.memory;
+
+/**
+ *  Notified of writes to the video memory the PPU keeps decoded: the tile data in
+ *  0x8000-0x97FF and OAM, written directly or by DMA;
+ */
+public interface VramWriteListener {
+    void tileDataWritten(int address);
+
+    void oamWritten();
+}
@@ -0,0 +1,12 @@
+package emulator.ppu;
+
+/**
+ *  Receives each frame the PPU completes, e.g. to show, record or hash it;
+ */
+public interface FrameSink {
+    /**
+     * Called at the end of every frame with WIDTH * HEIGHT shades 0-3, lightest first, row by row.
+     * The array is the PPU's own framebuffer: copy what must outlive the call.
+     */
+    void frameReady(byte[] frame);
+}
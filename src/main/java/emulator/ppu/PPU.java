@@ -1,11 +1,26 @@
 package emulator.ppu;
 
+import emulator.main.Scheduler;
 import emulator.memory.MMU;
+import emulator.memory.VramWriteListener;
 
-import java.awt.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
+/**
+ *  The pixel processing unit: the LCD mode state machine and the scanline renderer;
+ *  Scanlines are drawn as shades 0-3 into a byte[] framebuffer, one byte per pixel,
+ *  row by row, which is handed to a FrameSink whenever a frame completes;
+ *  Background and window are drawn as colour indices first, then sprites are laid over
+ *  them and the palettes turn the whole line into shades;
+ *  Nothing here touches AWT, so headless runs render exactly like the window does;
+ */
+public class PPU implements VramWriteListener {
+    public static final int WIDTH = 160;
+    public static final int HEIGHT = 144;
 
-public abstract class PPU  {
     protected static final int CLOCKS_PER_HBLANK = 204; /* Mode 0 */
     protected static final int CLOCKS_PER_SCANLINE_OAM = 80; /* Mode 2 */
     protected static final int CLOCKS_PER_SCANLINE_VRAM = 172; /* Mode 3 */
@@ -16,49 +31,299 @@ public abstract class PPU  {
     private static final int SCANLINES_PER_FRAME = 144;
     private static final int CLOCKS_PER_FRAME = (CLOCKS_PER_SCANLINE * SCANLINES_PER_FRAME) + CLOCKS_PER_VBLANK;
 
-    protected static final int TILE_SET_ZERO_ADDR = 0x8000;
-    protected static final int TILE_SET_ONE_ADDR = 0x8800;
     protected static final int TILE_MAP_ZERO_ADDR = 0x9800;
     protected static final int TILE_MAP_ONE_ADDR = 0x9C00;
 
+    // maps every colour index to the same shade
+    private static final int IDENTITY_PALETTE = 0xE4;
+    private static final byte NO_SPRITE = -1;
+    private static final byte HIDDEN_SPRITE = -2;
+
+    // stores eight framebuffer pixels at once
+    private static final VarHandle PIXELS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
 
     protected final MMU mmu;
     protected int scanLine;
     protected PPUMode mode = PPUMode.ACCESS_OAM;
     protected int cycleCounter;
+    protected long frameCount;
+
+    // LCD registers latched when the current scanline is drawn
+    protected boolean windowTileMap;
+    protected boolean bgWindowTileData;
+    protected boolean bgTileMapDisplay;
+    protected boolean spriteSize;
+    protected boolean spritesEnabled;
+    protected int scrollX;
+    protected int scrollY;
+    protected int windowX;
+    protected int windowY;
+    protected int bgPalette;
+    protected int objPalette0;
+    protected int objPalette1;
 
-    protected final Color[] palette = {
-            new Color(224, 248, 208),
-            new Color(136, 192, 112),
-            new Color(52,104,86),
-            new Color(8, 24, 32)
-    };
+    protected final byte[] frame = new byte[WIDTH * HEIGHT];
+    private final FrameSink sink;
+    private final TileCache tiles;
+    private final SpriteIndex sprites;
+    // shade of the top sprite pixel in each column of the line being drawn, or one of below
+    private final byte[] spriteLine = new byte[WIDTH];
 
-    public PPU(MMU mmu) {
+    public PPU(MMU mmu, FrameSink sink) {
         this.mmu = mmu;
+        this.sink = sink;
+        tiles = new TileCache(mmu);
+        sprites = new SpriteIndex(mmu);
+        mmu.setVramWriteListener(this);
+    }
+
+    public void tick(int cycles) {
+        cycleCounter += cycles;
+        switch (mode){
+            case HBLANK: // HBlank
+                if (cycleCounter >= CLOCKS_PER_HBLANK) {
+                    writeScanline(scanLine);
+                    scanLine++;
+                    mmu.setLY(scanLine);
+
+                    cycleCounter %= CLOCKS_PER_HBLANK;
+
+                    if (scanLine == 144) {
+                        mode = PPUMode.VBLANK;
+
+                        mmu.setStatBit(0);
+                        mmu.unSetStatBit(1);
+                        mmu.setIFBit(0);
+
+                    } else {
+                        mmu.unSetStatBit(0);
+                        mmu.setStatBit(1);
+                        mode = PPUMode.ACCESS_OAM;
+                    }
+                }
+                break;
+            case VBLANK: //VBlank
+                if (cycleCounter >= CLOCKS_PER_SCANLINE) {
+                    scanLine++;
+                    mmu.setLY(scanLine);
+
+                    cycleCounter %= CLOCKS_PER_SCANLINE;
+
+                    if (scanLine == 154) {
+                        sink.frameReady(frame);
+                        frameCount++;
+                        scanLine = 0;
+                        mmu.setLY(scanLine);
+                        mode = PPUMode.ACCESS_OAM;
+                        mmu.setStatBit(1);
+                        mmu.unSetStatBit(0);
+                    }
+                }
+                break;
+            case ACCESS_OAM: // OAM
+                if (cycleCounter >= CLOCKS_PER_SCANLINE_OAM) {
+                    cycleCounter %= CLOCKS_PER_SCANLINE_OAM;
+                    // Set LCD Controller stat bit
+                    mmu.setStatBit(0);
+                    mmu.setStatBit(1);
+
+                    mode = PPUMode.ACCESS_VRAM;
+                }
+                break;
+            case ACCESS_VRAM: /// VRAM
+                if (cycleCounter >= CLOCKS_PER_SCANLINE_VRAM) {
+                    cycleCounter %= CLOCKS_PER_SCANLINE_VRAM;
+                    mode = PPUMode.HBLANK;
+
+                    boolean hBlankInterrupt = mmu.getStatBit(3) == 1;
+                    if (hBlankInterrupt) {
+                        mmu.setIFBit(1);
+                    }
+
+                    boolean lyCoincidenceInterrupt = mmu.getStatBit(6) == 1;
+                    boolean lyCoincidence = mmu.getLYComp() == scanLine;
+                    if (lyCoincidenceInterrupt && lyCoincidence) {
+                        mmu.setIFBit(1);
+                    }
+                    if (lyCoincidence) mmu.setStatBit(2);
+                    else mmu.unSetStatBit(2);
+
+                    mmu.unSetStatBit(1);
+                    mmu.unSetStatBit(0);
+
+                }
+                break;
+        }
+
     }
 
-    public abstract void tick(int cycles);
+    private Scheduler scheduler;
+    private final Scheduler.Event modeChange = this::modeChange;
 
-    protected abstract void drawBgLine(int line);
+    /** Drives the PPU from scheduler events at each mode change instead of tick calls. */
+    public void attach(Scheduler scheduler) {
+        this.scheduler = scheduler;
+        scheduler.schedule(modeChange, scheduler.now() + cyclesUntilNextEvent());
+    }
+
+    private void modeChange(long deadline) {
+        tick(cyclesUntilNextEvent());
+        // relative to the deadline, so a late CPU batch does not shift the PPU's timing
+        scheduler.schedule(modeChange, deadline + cyclesUntilNextEvent());
+    }
 
-    protected abstract void drawWindowLine(int line);
+    /** Cycles that can pass before the next mode change, i.e. before tick does anything visible. */
+    public int cyclesUntilNextEvent() {
+        switch (mode) {
+            case HBLANK:
+                return CLOCKS_PER_HBLANK - cycleCounter;
+            case VBLANK:
+                return CLOCKS_PER_SCANLINE - cycleCounter;
+            case ACCESS_OAM:
+                return CLOCKS_PER_SCANLINE_OAM - cycleCounter;
+            default:
+                return CLOCKS_PER_SCANLINE_VRAM - cycleCounter;
+        }
+    }
+
+    @Override
+    public void tileDataWritten(int address) {
+        tiles.invalidate(address);
+    }
+
+    @Override
+    public void oamWritten() {
+        sprites.invalidate();
+    }
+
+    /** Frames completed since power-on, counted when LY wraps back to 0. */
+    public long getFrameCount() {
+        return frameCount;
+    }
 
     protected void writeScanline(int line) {
         if (!mmu.displayEnabled()) { return; }
-        if (mmu.bgEnabled()) {
+        latchRegisters();
+        // with the background off, the window is off too and the line shows colour 0
+        boolean bgEnabled = mmu.bgEnabled();
+        if (bgEnabled) {
             drawBgLine(line);
+            if (mmu.windowEnabled()) {
+                drawWindowLine(line);
+            }
+        } else {
+            Arrays.fill(frame, line * WIDTH, (line + 1) * WIDTH, (byte) 0);
         }
 
-        if (mmu.windowEnabled()) {
-            drawWindowLine(line);
+        boolean sprites = spritesEnabled && drawSprites(line);
+        int palette = bgEnabled ? bgPalette : IDENTITY_PALETTE;
+        if (sprites || palette != IDENTITY_PALETTE) {
+            applyPalettes(line, palette, sprites);
         }
     }
 
+    /** Copies the decoded LCD registers once per scanline, so drawing reads plain fields. */
+    protected void latchRegisters() {
+        windowTileMap = mmu.windowTileMap();
+        bgWindowTileData = mmu.bgWindowTileData();
+        bgTileMapDisplay = mmu.bgTileMapDisplay();
+        spriteSize = mmu.spriteSize();
+        spritesEnabled = mmu.spritesEnabled();
+        scrollX = mmu.getScrollX();
+        scrollY = mmu.getScrollY();
+        windowX = mmu.getWindowX();
+        windowY = mmu.getWindowY();
+        bgPalette = mmu.getBgPalette();
+        objPalette0 = mmu.getObjPalette0();
+        objPalette1 = mmu.getObjPalette1();
+    }
+
+    private void drawBgLine(int line) {
+        int tileMapAddr = bgTileMapDisplay ? TILE_MAP_ONE_ADDR : TILE_MAP_ZERO_ADDR;
+        drawTiles(line, 0, tileMapAddr, (line + scrollY) & 0xFF, scrollX);
+    }
 
-    protected int getColorFromPixel(int byte1, int byte2, int pixelIndex) {
-//        System.out.println("WRITING COLOR " + ((byte2 >> 7-pixelIndex << 1 | byte1 >> 7-pixelIndex) & 0xFF));
-        return (byte2 >> 7-pixelIndex << 1 | byte1 >> 7-pixelIndex) & 0x03;
+    private void drawWindowLine(int line) {
+        int tileMapAddr = windowTileMap ? TILE_MAP_ONE_ADDR : TILE_MAP_ZERO_ADDR;
+        int scrolledY = line - windowY;
+
+        // the window starts at WY and WX - 7 and is not wrapped
+        if (scrolledY < 0 || windowX - 7 >= WIDTH) { return; }
+        int screenX = Math.max(windowX - 7, 0);
+        drawTiles(line, screenX, tileMapAddr, scrolledY, screenX - (windowX - 7));
+    }
+
+    /**
+     * Draws the map row holding map line mapY into columns from..159 of the line, starting at
+     * map column mapX. Each tile line comes decoded from the tile cache; whole tiles are stored
+     * as one long and only the partial tiles left by fine scrolling are copied pixel by pixel.
+     */
+    private void drawTiles(int line, int from, int tileMapAddr, int mapY, int mapX) {
+        int rowAddr = tileMapAddr + (mapY >> 3) * 32;
+        int tileLine = mapY & 7;
+        int lineStart = line * WIDTH;
+        int column = mapX >> 3;
+        for (int x = from - (mapX & 7); x < WIDTH; x += 8) {
+            int tileId = mmu.readVram(rowAddr + column);
+            column = (column + 1) & 31;
+            /* Tile set one is indexed with signed IDs around 0x9000, i.e. tile 256 */
+            int tile = bgWindowTileData ? tileId : ((tileId + 128) & 0xFF) + 128;
+            long pixels = tiles.row(tile, tileLine);
+            if (x >= from && x + 8 <= WIDTH) {
+                PIXELS.set(frame, lineStart + x, pixels);
+            } else {
+                for (int i = Math.max(x, from); i < Math.min(x + 8, WIDTH); i++) {
+                    frame[lineStart + i] = (byte) (pixels >>> ((i - x) * 8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Works out the sprite pixels of the line into spriteLine, visiting the line's sprites in
+     * priority order so the first opaque pixel at each column wins. A winning pixel behind
+     * the background still hides the sprites below it. Returns whether any sprite is on the line.
+     */
+    private boolean drawSprites(int line) {
+        int count = sprites.count(line, spriteSize);
+        if (count == 0) return false;
+        Arrays.fill(spriteLine, NO_SPRITE);
+        int lineStart = line * WIDTH;
+        for (int i = 0; i < count; i++) {
+            int oam = 0xFE00 + sprites.sprite(line, i) * 4;
+            int x = mmu.readOam(oam + 1) - 8;
+            if (x <= -8 || x >= WIDTH) continue;
+            int tile = mmu.readOam(oam + 2);
+            int attributes = mmu.readOam(oam + 3);
+
+            int row = line - (mmu.readOam(oam) - 16);
+            if ((attributes & 0x40) != 0) row = (spriteSize ? 15 : 7) - row;
+            if (spriteSize) tile = (tile & 0xFE) + (row >> 3);
+            long pixels = (attributes & 0x20) != 0 ? tiles.flippedRow(tile, row & 7) : tiles.row(tile, row & 7);
+            if (pixels == 0) continue;
+
+            int palette = (attributes & 0x10) != 0 ? objPalette1 : objPalette0;
+            boolean behindBg = (attributes & 0x80) != 0;
+            for (int pixel = Math.max(-x, 0); pixel < Math.min(WIDTH - x, 8); pixel++) {
+                int color = (int) (pixels >>> pixel * 8) & 0x03;
+                int screenX = x + pixel;
+                if (color == 0 || spriteLine[screenX] != NO_SPRITE) continue;
+                spriteLine[screenX] = behindBg && frame[lineStart + screenX] != 0
+                        ? HIDDEN_SPRITE
+                        : (byte) (palette >> color * 2 & 0x03);
+            }
+        }
+        return true;
+    }
+
+    /** Turns the line's colour indices into shades, taking sprite pixels from spriteLine. */
+    private void applyPalettes(int line, int bgPalette, boolean sprites) {
+        int lineStart = line * WIDTH;
+        for (int x = 0; x < WIDTH; x++) {
+            int shade = sprites ? spriteLine[x] : NO_SPRITE;
+            if (shade < 0) shade = bgPalette >> frame[lineStart + x] * 2 & 0x03;
+            frame[lineStart + x] = (byte) shade;
+        }
     }
 
 }
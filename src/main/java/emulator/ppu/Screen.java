@@ -3,16 +3,34 @@ package emulator.ppu;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ *  Swing window showing the frames at 4x scale;
+ *  Shades are turned into packed RGB through a table and stored straight into the image's
+ *  int[] backing array, each row widened once and copied to the rows below it, so
+ *  presenting a frame does no per-pixel AWT calls;
+ */
+public class Screen extends JPanel implements FrameSink {
+    private static final int SCALE = 4;
+    private static final int SCALED_WIDTH = PPU.WIDTH * SCALE;
+
+    // packed RGB of each shade, lightest first
+    private static final int[] PALETTE = {
+            0xE0F8D0,
+            0x88C070,
+            0x346856,
+            0x081820
+    };
 
-public class Screen extends JPanel {
-    private final BufferedImage buffer;
     private final BufferedImage img;
+    private final int[] pixels;
     private final JFrame frame;
 
     public Screen() {
         frame = new JFrame("gb");
-        buffer = new BufferedImage(160, 144, BufferedImage.TYPE_INT_RGB);
-        img = new BufferedImage(160*4, 144*4, BufferedImage.TYPE_INT_RGB);
+        img = new BufferedImage(SCALED_WIDTH, PPU.HEIGHT * SCALE, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
         ImageIcon icon = new ImageIcon( img );
         frame.setSize((160 * 4) + 6, (144 * 4) + 34);
         frame.add(new JLabel(icon));
@@ -23,10 +41,6 @@ public class Screen extends JPanel {
         frame.getContentPane().setLayout(new FlowLayout(FlowLayout.LEFT, 0, 0));
     }
 
-    public void set(int x, int y, int rgb) {
-        buffer.setRGB(x, y, rgb);
-    }
-
     @Override
     protected void paintComponent(Graphics g) {
         super.paint(g);
@@ -34,9 +48,20 @@ public class Screen extends JPanel {
         g2.drawImage(img, null, null);
     }
 
-    public void renderFrame() {
-        Graphics2D g2 = img.createGraphics();
-        g2.drawImage(buffer, 0, 0, 160*4, 144*4, null);
+    @Override
+    public void frameReady(byte[] shades) {
+        int out = 0;
+        for (int y = 0; y < PPU.HEIGHT; y++) {
+            int rowStart = out;
+            for (int x = y * PPU.WIDTH; x < (y + 1) * PPU.WIDTH; x++) {
+                int rgb = PALETTE[shades[x]];
+                for (int i = 0; i < SCALE; i++) pixels[out++] = rgb;
+            }
+            for (int i = 1; i < SCALE; i++) {
+                System.arraycopy(pixels, rowStart, pixels, out, SCALED_WIDTH);
+                out += SCALED_WIDTH;
+            }
+        }
         frame.repaint();
     }
 }
@@ -0,0 +1,67 @@
+package emulator.ppu;
+
+import emulator.memory.MMU;
+
+import java.util.Arrays;
+
+/**
+ *  The sprites of every scanline, rebuilt from OAM once after it changes instead of
+ *  searching all 40 entries on each line;
+ *  Like the hardware, a line takes the first 10 sprites in OAM order whose rows cover it;
+ *  they are kept in drawing priority, lowest X first and lower OAM index on equal X;
+ */
+class SpriteIndex {
+    static final int SPRITES = 40;
+    static final int MAX_PER_LINE = 10;
+
+    private final MMU mmu;
+    // OAM indices of each line's sprites, by priority
+    private final byte[] lineSprites = new byte[PPU.HEIGHT * MAX_PER_LINE];
+    private final byte[] lineCounts = new byte[PPU.HEIGHT];
+    private final int[] xs = new int[SPRITES];
+    private boolean dirty = true;
+    private boolean tall;
+
+    SpriteIndex(MMU mmu) {
+        this.mmu = mmu;
+    }
+
+    void invalidate() {
+        dirty = true;
+    }
+
+    /** Number of sprites on the line, with 8x16 sprites if tall; rebuilds the index if it is stale. */
+    int count(int line, boolean tall) {
+        if (dirty || tall != this.tall) build(tall);
+        return lineCounts[line];
+    }
+
+    /** OAM index of the line's i-th sprite in priority order; call count first. */
+    int sprite(int line, int i) {
+        return lineSprites[line * MAX_PER_LINE + i];
+    }
+
+    private void build(boolean tall) {
+        this.tall = tall;
+        dirty = false;
+        Arrays.fill(lineCounts, (byte) 0);
+        int height = tall ? 16 : 8;
+        for (int sprite = 0; sprite < SPRITES; sprite++) {
+            int top = mmu.readOam(sprite * 4) - 16;
+            int x = mmu.readOam(sprite * 4 + 1);
+            xs[sprite] = x;
+            for (int line = Math.max(top, 0); line < Math.min(top + height, PPU.HEIGHT); line++) {
+                int count = lineCounts[line];
+                if (count == MAX_PER_LINE) continue;
+                // insertion sort by X; sprites arrive in OAM order, so ties keep it
+                int slot = line * MAX_PER_LINE + count;
+                while (slot > line * MAX_PER_LINE && xs[lineSprites[slot - 1]] > x) {
+                    lineSprites[slot] = lineSprites[slot - 1];
+                    slot--;
+                }
+                lineSprites[slot] = (byte) sprite;
+                lineCounts[line] = (byte) (count + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package emulator.ppu;
+
+import java.io.PrintStream;
+
+/**
+ *  Headless sink that prints every frame as rows of shades;
+ */
+public class TextFrameSink implements FrameSink {
+    private final PrintStream out;
+    private final StringBuilder text = new StringBuilder(PPU.WIDTH * PPU.HEIGHT * 2 + 16);
+
+    public TextFrameSink(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void frameReady(byte[] frame) {
+        text.setLength(0);
+        text.append("NEW FRAME\n");
+        for (int y = 0; y < PPU.HEIGHT; y++) {
+            for (int x = 0; x < PPU.WIDTH; x++) text.append(frame[y * PPU.WIDTH + x]).append(' ');
+            text.append('\n');
+        }
+        out.println(text);
+    }
+}
@@ -0,0 +1,69 @@
+package emulator.ppu;
+
+import emulator.memory.MMU;
+
+import java.util.Arrays;
+
+/**
+ *  The 384 tiles of 0x8000-0x97FF decoded to colour indices, with a mirrored copy for sprites;
+ *  Each tile line is a long holding its 8 colour indices, leftmost pixel in the lowest byte,
+ *  which is framebuffer order; the PPU passes on the writes the MMU reports and a written
+ *  tile is decoded again the next time it is drawn, so rendering only copies rows;
+ */
+class TileCache {
+    static final int TILES = 384;
+
+    // every tile line, by high byte << 8 | low byte
+    private static final long[] TILE_ROWS = tileRows();
+
+    private final MMU mmu;
+    private final long[] rows = new long[TILES * 8];
+    private final long[] flippedRows = new long[TILES * 8];
+    private final boolean[] dirty = new boolean[TILES];
+
+    TileCache(MMU mmu) {
+        this.mmu = mmu;
+        Arrays.fill(dirty, true);
+    }
+
+    /** Line 0-7 of tile 0-383, counted from 0x8000. */
+    long row(int tile, int line) {
+        if (dirty[tile]) decode(tile);
+        return rows[tile << 3 | line];
+    }
+
+    /** Like row, mirrored horizontally. */
+    long flippedRow(int tile, int line) {
+        if (dirty[tile]) decode(tile);
+        return flippedRows[tile << 3 | line];
+    }
+
+    /** Drops the tile holding the VRAM address, which was just written. */
+    void invalidate(int address) {
+        dirty[(address - 0x8000) >> 4] = true;
+    }
+
+    private void decode(int tile) {
+        int address = 0x8000 + tile * 16;
+        for (int line = 0; line < 8; line++) {
+            long row = TILE_ROWS[mmu.readVram(address + 1) << 8 | mmu.readVram(address)];
+            rows[tile << 3 | line] = row;
+            flippedRows[tile << 3 | line] = Long.reverseBytes(row);
+            address += 2;
+        }
+        dirty[tile] = false;
+    }
+
+    private static long[] tileRows() {
+        long[] rows = new long[0x10000];
+        for (int bits = 0; bits < 0x10000; bits++) {
+            long row = 0;
+            for (int pixel = 0; pixel < 8; pixel++) {
+                int color = (bits >> 15 - pixel & 1) << 1 | bits >> 7 - pixel & 1;
+                row |= (long) color << pixel * 8;
+            }
+            rows[bits] = row;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,38 @@
+package emulator;
+
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ *  Builds small cartridge images for tests, so they need no ROM files on disk;
+ */
+public final class TestRoms {
+    public static final int ROM_SIZE = 0x8000;
+
+    private TestRoms() {
+    }
+
+    /** A 32K ROM-only image with code at 0x0100, where the CPU starts. */
+    public static byte[] image(int... code) {
+        byte[] image = new byte[ROM_SIZE];
+        put(image, 0x0100, code);
+        return image;
+    }
+
+    /** Copies code into the image at address. */
+    public static void put(byte[] image, int address, int... code) {
+        for (int i = 0; i < code.length; i++) {
+            image[address + i] = (byte) code[i];
+        }
+    }
+
+    /** Writes the image to a new file in folder and returns its path. */
+    public static String write(TemporaryFolder folder, byte[] image) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, image);
+        return file.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package emulator.cpu;
+
+import emulator.TestRoms;
+import emulator.memory.MMU;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class DmaTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // starts DMA from C000, then calls ROM code that reads C000 before and after the transfer
+    private byte[] callDuringDma() {
+        byte[] image = TestRoms.image(
+                0x3E, 0x5A,             // LD A,5A
+                0xEA, 0x00, 0xC0,       // LD (C000),A
+                0x3E, 0xC0,             // LD A,C0
+                0xE0, 0x46,             // LDH (46),A
+                0xCD, 0x00, 0x02,       // CALL 0200
+                0x18, 0xFE);            // JR -2
+        TestRoms.put(image, 0x0200,
+                0xFA, 0x00, 0xC0,       // LD A,(C000)   blocked by DMA
+                0x5F,                   // LD E,A
+                0x06, 0x12,             // LD B,12
+                0x0E, 0x40,             // LD C,40
+                0x0D,                   // DEC C
+                0x20, 0xFD,             // JR NZ,-3
+                0xFA, 0x00, 0xC0,       // LD A,(C000)   DMA is over
+                0x57,                   // LD D,A
+                0xC9);                  // RET
+        return image;
+    }
+
+    // restarts DMA with a shrinking delay before a hot block that reads the source late in
+    // its run, so the end of the transfer eventually falls inside that block
+    private byte[] readsAcrossDmaEnd() {
+        return TestRoms.image(
+                0x21, 0x00, 0xC0,       // LD HL,C000
+                0x36, 0x5A,             // LD (HL),5A
+                0x06, 0xC0,             // LD B,C0
+                0x1E, 0x00,             // LD E,00
+                0x3E, 0xC0,             // loop: LD A,C0
+                0xE0, 0x46,             // LDH (46),A
+                0x48,                   // LD C,B
+                0x0D,                   // delay: DEC C
+                0x20, 0xFD,             // JR NZ,delay
+                0x00, 0x00, 0x00, 0x00, // NOP x8
+                0x00, 0x00, 0x00, 0x00,
+                0x7E,                   // LD A,(HL)
+                0x83,                   // ADD A,E
+                0x5F,                   // LD E,A
+                0x05,                   // DEC B
+                0x20, 0xEA,             // JR NZ,loop
+                0x18, 0xFE);            // JR -2
+    }
+
+    private CPU run(byte[] image, boolean jit, int cycles) throws Exception {
+        MMU mmu = new MMU(TestRoms.write(folder, image), null);
+        CPU cpu = new CPU(mmu);
+        cpu.setJitEnabled(jit);
+        cpu.run(cycles);
+        mmu.close();
+        return cpu;
+    }
+
+    @Test
+    public void codeCalledDuringDmaRunsFromRom() throws Exception {
+        for (boolean jit : new boolean[] {false, true}) {
+            CPU cpu = run(callDuringDma(), jit, 2000);
+            assertEquals(0xFF, cpu.e);
+            assertEquals(0x5A, cpu.d);
+            assertEquals(0x12, cpu.b);
+            assertEquals(0x00, cpu.c);
+            assertEquals(0xFFFE, cpu.sp);
+            assertEquals(0x010C, cpu.pc);
+        }
+    }
+
+    @Test
+    public void compiledBlocksSeeDmaEndLikeTheInterpreter() throws Exception {
+        CPU interpreted = run(readsAcrossDmaEnd(), false, 100_000);
+        CPU compiled = run(readsAcrossDmaEnd(), true, 100_000);
+        assertEquals(0x011F, interpreted.pc);
+        assertEquals(interpreted.e, compiled.e);
+        assertEquals(interpreted.getF(), compiled.getF());
+        assertEquals(interpreted.getCycleCount(), compiled.getCycleCount());
+    }
+}
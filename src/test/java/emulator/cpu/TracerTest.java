@@ -0,0 +1,77 @@
+package emulator.cpu;
+
+import emulator.TestRoms;
+import emulator.memory.MMU;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TracerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String[] dumpAndDecode(Tracer tracer) throws Exception {
+        Path file = folder.newFile().toPath();
+        tracer.dump(file);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        Tracer.decode(ByteBuffer.wrap(Files.readAllBytes(file)), new PrintStream(text, true, "UTF-8"));
+        String out = text.toString("UTF-8");
+        return out.isEmpty() ? new String[0] : out.split(System.lineSeparator());
+    }
+
+    @Test
+    public void recordsDecodeToTheCpuState() throws Exception {
+        MMU mmu = new MMU(TestRoms.write(folder, TestRoms.image(
+                0x00,                    // NOP
+                0x3E, 0x42,              // LD A,42
+                0xC3, 0x00, 0x01)), null); // JP 0100
+        CPU cpu = new CPU(mmu);
+        Tracer tracer = new Tracer(16);
+        cpu.setTracer(tracer);
+        for (int i = 0; i < 3; i++) {
+            cpu.tick(1);
+        }
+        mmu.close();
+
+        assertEquals(3, tracer.recordCount());
+        assertArrayEquals(new String[] {
+                "A:01 F:B0 B:00 C:13 D:00 E:D8 H:01 L:4D SP:FFFE PC:0100 PCMEM:00,3E,42,C3",
+                "A:01 F:B0 B:00 C:13 D:00 E:D8 H:01 L:4D SP:FFFE PC:0101 PCMEM:3E,42,C3,00",
+                "A:42 F:B0 B:00 C:13 D:00 E:D8 H:01 L:4D SP:FFFE PC:0103 PCMEM:C3,00,01,00",
+        }, dumpAndDecode(tracer));
+    }
+
+    @Test
+    public void ringKeepsTheNewestRecordsOldestFirst() throws Exception {
+        Tracer tracer = new Tracer(4);
+        for (int i = 0; i < 10; i++) {
+            tracer.record(i, 0x0100 + i, 0xFFFE, 0x01B0, 0, 0, 0, i);
+        }
+        assertEquals(10, tracer.recordCount());
+        String[] lines = dumpAndDecode(tracer);
+        assertEquals(4, lines.length);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(String.format("PC:%04X PCMEM:%02X,00,00,00", 0x0106 + i, 6 + i),
+                    lines[i].substring(lines[i].indexOf("PC:")));
+        }
+    }
+
+    @Test
+    public void partlyFilledRingDumpsOnlyWhatWasRecorded() throws Exception {
+        Tracer tracer = new Tracer(4);
+        assertEquals(0, dumpAndDecode(tracer).length);
+        tracer.record(0, 0x0150, 0xFFFE, 0x01B0, 0, 0, 0, 0);
+        String[] lines = dumpAndDecode(tracer);
+        assertEquals(1, lines.length);
+        assertEquals("PC:0150 PCMEM:00,00,00,00", lines[0].substring(lines[0].indexOf("PC:")));
+    }
+}
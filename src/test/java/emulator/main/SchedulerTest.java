@@ -0,0 +1,76 @@
+package emulator.main;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SchedulerTest {
+    private static final class Recorder implements Scheduler.Event {
+        final int id;
+        final List<long[]> fired;
+
+        Recorder(int id, List<long[]> fired) {
+            this.id = id;
+            this.fired = fired;
+        }
+
+        @Override
+        public void fire(long deadline) {
+            fired.add(new long[] {id, deadline});
+        }
+    }
+
+    @Test
+    public void firesEarliestFirstAndNeverCancelledEvents() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 500; trial++) {
+            Scheduler scheduler = new Scheduler();
+            List<long[]> fired = new ArrayList<>();
+            Recorder[] events = new Recorder[6];
+            for (int i = 0; i < events.length; i++) events[i] = new Recorder(i, fired);
+
+            int[] pending = new int[events.length];
+            for (int i = 0; i < 40; i++) {
+                int id = random.nextInt(events.length);
+                scheduler.schedule(events[id], random.nextInt(1000));
+                pending[id]++;
+            }
+            int cancelled = random.nextInt(events.length);
+            scheduler.cancel(events[cancelled]);
+            scheduler.cancel(events[(cancelled + 1) % events.length]);
+            pending[cancelled] = 0;
+            pending[(cancelled + 1) % events.length] = 0;
+
+            scheduler.advance(1000);
+            int expected = 0;
+            for (int count : pending) expected += count;
+            assertEquals(expected, fired.size());
+            for (int i = 0; i < fired.size(); i++) {
+                long[] entry = fired.get(i);
+                assertTrue(pending[(int) entry[0]] > 0);
+                if (i > 0) assertTrue(fired.get(i - 1)[1] <= entry[1]);
+            }
+            assertEquals(Integer.MAX_VALUE, scheduler.cyclesUntilNextEvent());
+        }
+    }
+
+    @Test
+    public void cyclesUntilNextEventTracksTheEarliestDeadline() {
+        Scheduler scheduler = new Scheduler();
+        List<long[]> fired = new ArrayList<>();
+        Recorder early = new Recorder(0, fired);
+        scheduler.schedule(new Recorder(1, fired), 50);
+        scheduler.schedule(early, 20);
+        assertEquals(20, scheduler.cyclesUntilNextEvent());
+        scheduler.cancel(early);
+        assertEquals(50, scheduler.cyclesUntilNextEvent());
+        scheduler.advance(60);
+        assertEquals(1, fired.size());
+        assertEquals(50, fired.get(0)[1]);
+    }
+}
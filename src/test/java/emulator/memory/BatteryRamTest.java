@@ -0,0 +1,78 @@
+package emulator.memory;
+
+import emulator.TestRoms;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatteryRamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // MBC1 with 8K of battery-backed RAM
+    private String batteryRom() throws Exception {
+        byte[] image = TestRoms.image();
+        image[0x147] = 0x03;
+        image[0x149] = 0x02;
+        return TestRoms.write(folder, image);
+    }
+
+    private static void writeRam(MMU mmu, int address, int value) {
+        mmu.writeByte(0x0000, 0x0A);
+        mmu.writeByte(address, value);
+    }
+
+    @Test
+    public void instancesOnTheSameRomDoNotShareRam() throws Exception {
+        String rom = batteryRom();
+        MMU first = new MMU(rom);
+        MMU second = new MMU(rom);
+        writeRam(first, 0xA123, 42);
+        writeRam(second, 0xA000, 0);
+        assertEquals(42, first.readByte(0xA123));
+        assertEquals(0, second.readByte(0xA123));
+        first.close();
+        second.close();
+        // without a save path nothing is written next to the ROM
+        File[] files = new File(rom).getParentFile().listFiles();
+        assertArrayEquals(new File[] {new File(rom)}, files);
+    }
+
+    @Test
+    public void saveFileIsKeptAcrossInstances() throws Exception {
+        String rom = batteryRom();
+        Path save = folder.getRoot().toPath().resolve("game.sav");
+        MMU mmu = new MMU(rom, save);
+        writeRam(mmu, 0xA123, 42);
+        mmu.close();
+
+        mmu = new MMU(rom, save);
+        mmu.writeByte(0x0000, 0x0A);
+        assertEquals(42, mmu.readByte(0xA123));
+        mmu.close();
+    }
+
+    @Test
+    public void saveFileInUseIsRefused() throws Exception {
+        String rom = batteryRom();
+        Path save = folder.getRoot().toPath().resolve("game.sav");
+        MMU first = new MMU(rom, save);
+        try {
+            new MMU(rom, save);
+            fail("a second instance opened a save file in use");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().contains("in use"));
+        }
+        first.close();
+        // released on close
+        new MMU(rom, save).close();
+    }
+}
@@ -0,0 +1,122 @@
+package emulator.memory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MBCTest {
+    private static final long SECOND = 1 << 20;
+
+    private long cycles;
+
+    @Test
+    public void mbc1BankZeroSelectsBankOne() {
+        MBC1 mbc = new MBC1(128, 4, false);
+        assertEquals(1, mbc.highRomBank());
+        mbc.write(0x2000, 0x00);
+        assertEquals(1, mbc.highRomBank());
+        mbc.write(0x2000, 0x07);
+        assertEquals(7, mbc.highRomBank());
+        // only the low 5 bits are checked, so 0x20 maps bank 0x21 and not 0x20
+        mbc.write(0x4000, 0x01);
+        mbc.write(0x2000, 0x20);
+        assertEquals(0x21, mbc.highRomBank());
+    }
+
+    @Test
+    public void mbc1Mode0UsesUpperBitsForRomOnly() {
+        MBC1 mbc = new MBC1(128, 4, false);
+        mbc.write(0x0000, 0x0A);
+        mbc.write(0x2000, 0x05);
+        mbc.write(0x4000, 0x02);
+        assertEquals(0x45, mbc.highRomBank());
+        assertEquals(0, mbc.lowRomBank());
+        assertEquals(0, mbc.ramBank());
+    }
+
+    @Test
+    public void mbc1Mode1AlsoSwitchesLowRomAndRam() {
+        MBC1 mbc = new MBC1(128, 4, false);
+        mbc.write(0x0000, 0x0A);
+        mbc.write(0x2000, 0x05);
+        mbc.write(0x4000, 0x02);
+        mbc.write(0x6000, 0x01);
+        assertEquals(0x45, mbc.highRomBank());
+        assertEquals(0x40, mbc.lowRomBank());
+        assertEquals(2, mbc.ramBank());
+        mbc.write(0x0000, 0x00);
+        assertEquals(-1, mbc.ramBank());
+    }
+
+    @Test
+    public void mbc5SelectsNineBitRomBanks() {
+        MBC5 mbc = new MBC5(512, 16, false);
+        mbc.write(0x2000, 0x34);
+        assertEquals(0x34, mbc.highRomBank());
+        mbc.write(0x3000, 0x01);
+        assertEquals(0x134, mbc.highRomBank());
+        mbc.write(0x2000, 0xFF);
+        assertEquals(0x1FF, mbc.highRomBank());
+        // unlike MBC1, bank 0 is not remapped
+        mbc.write(0x3000, 0x00);
+        mbc.write(0x2000, 0x00);
+        assertEquals(0, mbc.highRomBank());
+    }
+
+    private MBC3 clockCartridge() {
+        MBC3 mbc = new MBC3(64, 4, true, true, () -> cycles);
+        mbc.write(0x0000, 0x0A);
+        return mbc;
+    }
+
+    private static void latch(MBC3 mbc) {
+        mbc.write(0x6000, 0x00);
+        mbc.write(0x6000, 0x01);
+    }
+
+    private static int readClock(MBC3 mbc, int register) {
+        mbc.write(0x4000, register);
+        return mbc.readRegister(0xA000);
+    }
+
+    @Test
+    public void mbc3ClockIsReadThroughTheLatch() {
+        MBC3 mbc = clockCartridge();
+        cycles += 3 * 3600 * SECOND + 61 * SECOND + SECOND / 2;
+        assertEquals(0, readClock(mbc, 0x08));
+        latch(mbc);
+        cycles += 10 * SECOND;
+        assertEquals(1, readClock(mbc, 0x08));
+        assertEquals(1, readClock(mbc, 0x09));
+        assertEquals(3, readClock(mbc, 0x0A));
+        // the RAM bank register selected the clock, so no RAM is mapped
+        assertEquals(-1, mbc.ramBank());
+        latch(mbc);
+        assertEquals(11, readClock(mbc, 0x08));
+    }
+
+    @Test
+    public void mbc3ClockStandsStillWhileHalted() {
+        MBC3 mbc = clockCartridge();
+        cycles += 5 * SECOND;
+        mbc.write(0x4000, 0x0C);
+        mbc.writeRegister(0xA000, 0x40);
+        cycles += 100 * SECOND;
+        latch(mbc);
+        assertEquals(5, readClock(mbc, 0x08));
+        assertEquals(0x40, readClock(mbc, 0x0C));
+        mbc.writeRegister(0xA000, 0x00);
+        cycles += 2 * SECOND;
+        latch(mbc);
+        assertEquals(7, readClock(mbc, 0x08));
+    }
+
+    @Test
+    public void mbc3DayCounterOverflowSetsTheCarry() {
+        MBC3 mbc = clockCartridge();
+        cycles += (512L * 86400 + 2 * 86400) * SECOND;
+        latch(mbc);
+        assertEquals(2, readClock(mbc, 0x0B));
+        assertEquals(0x80, readClock(mbc, 0x0C));
+    }
+}
@@ -0,0 +1,51 @@
+package emulator.memory;
+
+import emulator.TestRoms;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SerialTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void internalClockTransferCompletesAtOnce() throws Exception {
+        MMU mmu = new MMU(TestRoms.write(folder, TestRoms.image()), null);
+        List<Integer> sent = new ArrayList<>();
+        mmu.getSerial().setListener(sent::add);
+        mmu.writeByte(0xFF0F, 0);
+
+        mmu.writeByte(Serial.SB, 0x42);
+        mmu.writeByte(Serial.SC, 0x81);
+
+        assertEquals(List.of(0x42), sent);
+        // nothing is connected, so the byte shifted in is all ones
+        assertEquals(0xFF, mmu.readByte(Serial.SB));
+        assertEquals(0x01, mmu.readByte(Serial.SC) & 0x81);
+        assertEquals(1 << 3, mmu.getIF() & 0x1F);
+        mmu.close();
+    }
+
+    @Test
+    public void externalClockTransferWaitsForAPartner() throws Exception {
+        MMU mmu = new MMU(TestRoms.write(folder, TestRoms.image()), null);
+        List<Integer> sent = new ArrayList<>();
+        mmu.getSerial().setListener(sent::add);
+        mmu.writeByte(0xFF0F, 0);
+
+        mmu.writeByte(Serial.SB, 0x42);
+        mmu.writeByte(Serial.SC, 0x80);
+
+        assertEquals(List.of(), sent);
+        assertEquals(0x42, mmu.readByte(Serial.SB));
+        assertEquals(0x80, mmu.readByte(Serial.SC) & 0x81);
+        assertEquals(0, mmu.getIF() & 0x1F);
+        mmu.close();
+    }
+}